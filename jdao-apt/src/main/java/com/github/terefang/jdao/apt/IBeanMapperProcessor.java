@@ -0,0 +1,547 @@
+/*
+ * Copyright (c) 2017. terefang@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.terefang.jdao.apt;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * generates a JBAO.IBeanMapper for every IBean class with @IBeanField fields.
+ * <p>
+ * the mapper is named after the bean (nested names joined by '_') with the suffix "_IBeanMapper"
+ * and placed in the package of the bean. annotations are referenced by name only, so the
+ * processor has no dependency on jdao itself.
+ * <p>
+ * beans that cannot be mapped without reflection (private fields without getters, no accessible
+ * no-arg constructor, improper ids) are skipped with a warning, JBAO then falls back to reflection.
+ *
+ */
+@SupportedAnnotationTypes({
+        IBeanMapperProcessor.IBEAN_FIELD,
+        IBeanMapperProcessor.IBEAN_ID
+})
+public class IBeanMapperProcessor extends AbstractProcessor
+{
+    static final String JBAO = "com.github.terefang.jdao.JBAO";
+    static final String IBEAN = JBAO+".IBean";
+    static final String IBEAN_FIELD = JBAO+".IBeanField";
+    static final String IBEAN_FIELD_TYPE = JBAO+".IBeanFieldType";
+    static final String IBEAN_ID = JBAO+".IBeanID";
+    static final String MAPPER_SUFFIX = "_IBeanMapper";
+
+    static final Map<String, String> RS_GETTERS = new HashMap<String, String>();
+    static
+    {
+        RS_GETTERS.put("long", "getLong");
+        RS_GETTERS.put("int", "getInt");
+        RS_GETTERS.put("short", "getShort");
+        RS_GETTERS.put("byte", "getByte");
+        RS_GETTERS.put("double", "getDouble");
+        RS_GETTERS.put("float", "getFloat");
+        RS_GETTERS.put("boolean", "getBoolean");
+        RS_GETTERS.put("java.lang.Long", "getLong");
+        RS_GETTERS.put("java.lang.Integer", "getInt");
+        RS_GETTERS.put("java.lang.Short", "getShort");
+        RS_GETTERS.put("java.lang.Byte", "getByte");
+        RS_GETTERS.put("java.lang.Double", "getDouble");
+        RS_GETTERS.put("java.lang.Float", "getFloat");
+        RS_GETTERS.put("java.lang.Boolean", "getBoolean");
+        RS_GETTERS.put("java.lang.String", "getString");
+        RS_GETTERS.put("java.math.BigDecimal", "getBigDecimal");
+        RS_GETTERS.put("java.sql.Timestamp", "getTimestamp");
+        RS_GETTERS.put("java.sql.Date", "getDate");
+        RS_GETTERS.put("java.sql.Time", "getTime");
+        RS_GETTERS.put("java.util.Date", "getTimestamp");
+        RS_GETTERS.put("byte[]", "getBytes");
+    }
+
+    private final Set<String> generated = new HashSet<String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion()
+    {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+    {
+        TypeElement fieldAnnotation = this.processingEnv.getElementUtils().getTypeElement(IBEAN_FIELD);
+        if(fieldAnnotation==null)
+        {
+            return false;
+        }
+
+        Set<TypeElement> beans = new LinkedHashSet<TypeElement>();
+        for(Element e : roundEnv.getElementsAnnotatedWith(fieldAnnotation))
+        {
+            if(e.getKind()==ElementKind.FIELD && e.getEnclosingElement() instanceof TypeElement)
+            {
+                beans.add((TypeElement) e.getEnclosingElement());
+            }
+        }
+
+        for(TypeElement bean : beans)
+        {
+            String name = bean.getQualifiedName().toString();
+            if(this.generated.contains(name) || !this.isIBean(bean))
+            {
+                continue;
+            }
+            this.generated.add(name);
+            try
+            {
+                BeanModel model = this.buildModel(bean);
+                if(model!=null)
+                {
+                    this.write(model);
+                }
+            }
+            catch(IOException xe)
+            {
+                this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "cannot write mapper: "+xe.getMessage(), bean);
+            }
+        }
+        return false;
+    }
+
+    boolean isIBean(TypeElement bean)
+    {
+        if(bean.getKind()!=ElementKind.CLASS || bean.getModifiers().contains(Modifier.ABSTRACT))
+        {
+            return false;
+        }
+        TypeElement ibean = this.processingEnv.getElementUtils().getTypeElement(IBEAN);
+        if(ibean==null)
+        {
+            return false;
+        }
+        return this.processingEnv.getTypeUtils().isAssignable(bean.asType(), this.processingEnv.getTypeUtils().erasure(ibean.asType()));
+    }
+
+    void skip(TypeElement bean, String reason)
+    {
+        this.processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                "no IBeanMapper generated for "+bean.getQualifiedName()+": "+reason, bean);
+    }
+
+    static class BeanModel
+    {
+        String packageName;
+        String mapperName;
+        String beanType;
+        List<ColumnModel> columns = new ArrayList<ColumnModel>();
+    }
+
+    static class ColumnModel
+    {
+        String column;
+        boolean id;
+        boolean asString;
+        String readExpr;
+        String property;
+        String setterName;
+        String setterType;
+        String setterClass;
+    }
+
+    BeanModel buildModel(TypeElement bean)
+    {
+        BeanModel model = new BeanModel();
+        PackageElement pkg = this.processingEnv.getElementUtils().getPackageOf(bean);
+        model.packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        model.beanType = bean.getQualifiedName().toString();
+
+        // nested beans must be static member classes reachable from the package
+        StringBuilder flatName = new StringBuilder();
+        Element e = bean;
+        while(e instanceof TypeElement)
+        {
+            TypeElement te = (TypeElement) e;
+            if(te.getModifiers().contains(Modifier.PRIVATE))
+            {
+                this.skip(bean, "private class");
+                return null;
+            }
+            if(te.getNestingKind()==NestingKind.LOCAL || te.getNestingKind()==NestingKind.ANONYMOUS)
+            {
+                return null;
+            }
+            if(te.getNestingKind()==NestingKind.MEMBER && !te.getModifiers().contains(Modifier.STATIC))
+            {
+                this.skip(bean, "inner class is not static");
+                return null;
+            }
+            flatName.insert(0, te.getSimpleName().toString());
+            if(te.getNestingKind()==NestingKind.MEMBER)
+            {
+                flatName.insert(0, '_');
+            }
+            e = te.getEnclosingElement();
+        }
+        model.mapperName = flatName+MAPPER_SUFFIX;
+
+        boolean hasConstructor = false;
+        for(ExecutableElement c : ElementFilter.constructorsIn(bean.getEnclosedElements()))
+        {
+            if(c.getParameters().isEmpty() && !c.getModifiers().contains(Modifier.PRIVATE))
+            {
+                hasConstructor = true;
+            }
+        }
+        if(!hasConstructor)
+        {
+            this.skip(bean, "no accessible no-arg constructor");
+            return null;
+        }
+
+        // fields in the order FieldUtils returns them: own fields first, then the superclasses
+        List<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+        List<VariableElement> fields = new ArrayList<VariableElement>();
+        TypeElement type = bean;
+        while(type!=null)
+        {
+            fields.addAll(ElementFilter.fieldsIn(type.getEnclosedElements()));
+            methods.addAll(ElementFilter.methodsIn(type.getEnclosedElements()));
+            TypeMirror sup = type.getSuperclass();
+            type = sup.getKind()==TypeKind.DECLARED ? (TypeElement) ((DeclaredType) sup).asElement() : null;
+        }
+
+        Set<String> mappedColumns = new HashSet<String>();
+        int ids = 0;
+        for(VariableElement field : fields)
+        {
+            AnnotationMirror fieldAnno = this.annotation(field, IBEAN_FIELD);
+            boolean isId = this.annotation(field, IBEAN_ID)!=null;
+            if(fieldAnno==null)
+            {
+                if(isId)
+                {
+                    this.skip(bean, "@IBeanID without @IBeanField on "+field.getSimpleName());
+                    return null;
+                }
+                continue;
+            }
+
+            ColumnModel col = new ColumnModel();
+            col.column = this.annotationValue(fieldAnno);
+            col.id = isId;
+            AnnotationMirror typeAnno = this.annotation(field, IBEAN_FIELD_TYPE);
+            col.asString = typeAnno!=null && "string".equalsIgnoreCase(this.annotationValue(typeAnno));
+            if(isId)
+            {
+                ids++;
+            }
+
+            String fieldName = field.getSimpleName().toString();
+            if(this.accessible(field, pkg))
+            {
+                col.readExpr = "bean."+fieldName;
+            }
+            else
+            {
+                ExecutableElement getter = this.findAccessor(methods, pkg, fieldName, true);
+                if(getter==null)
+                {
+                    this.skip(bean, "field "+fieldName+" is neither accessible nor has a getter");
+                    return null;
+                }
+                col.readExpr = "bean."+getter.getSimpleName()+"()";
+            }
+
+            // rows are mapped through setters only (as the reflective IBeanProcessor does), first field wins
+            if(mappedColumns.add(col.column.toLowerCase()))
+            {
+                ExecutableElement setter = this.findAccessor(methods, pkg, fieldName, false);
+                if(setter!=null)
+                {
+                    TypeMirror setterType = setter.getParameters().get(0).asType();
+                    col.property = fieldName;
+                    col.setterName = setter.getSimpleName().toString();
+                    col.setterType = setterType.toString();
+                    col.setterClass = this.processingEnv.getTypeUtils().erasure(setterType).toString();
+                }
+            }
+            model.columns.add(col);
+        }
+        if(ids==0)
+        {
+            // extractIdKvFromBean fails anyway, keep the reflective path for its error
+            this.processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                    "IBeanMapper for "+bean.getQualifiedName()+" has no @IBeanID fields", bean);
+        }
+        return model;
+    }
+
+    boolean accessible(Element member, PackageElement pkg)
+    {
+        Set<Modifier> mods = member.getModifiers();
+        if(mods.contains(Modifier.PRIVATE))
+        {
+            return false;
+        }
+        if(mods.contains(Modifier.PUBLIC))
+        {
+            return true;
+        }
+        return this.processingEnv.getElementUtils().getPackageOf(member).equals(pkg);
+    }
+
+    ExecutableElement findAccessor(List<ExecutableElement> methods, PackageElement pkg, String fieldName, boolean getter)
+    {
+        for(ExecutableElement m : methods)
+        {
+            if(m.getModifiers().contains(Modifier.STATIC) || !this.accessible(m, pkg))
+            {
+                continue;
+            }
+            String n = m.getSimpleName().toString();
+            if(getter)
+            {
+                if(m.getParameters().isEmpty() && m.getReturnType().getKind()!=TypeKind.VOID
+                        && (n.equalsIgnoreCase("get"+fieldName) || n.equalsIgnoreCase("is"+fieldName)))
+                {
+                    return m;
+                }
+            }
+            else
+            {
+                if(m.getParameters().size()==1 && n.equalsIgnoreCase("set"+fieldName))
+                {
+                    return m;
+                }
+            }
+        }
+        return null;
+    }
+
+    AnnotationMirror annotation(Element e, String name)
+    {
+        for(AnnotationMirror am : e.getAnnotationMirrors())
+        {
+            if(((TypeElement) am.getAnnotationType().asElement()).getQualifiedName().contentEquals(name))
+            {
+                return am;
+            }
+        }
+        return null;
+    }
+
+    String annotationValue(AnnotationMirror am)
+    {
+        for(Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> kv : am.getElementValues().entrySet())
+        {
+            if(kv.getKey().getSimpleName().contentEquals("value"))
+            {
+                return String.valueOf(kv.getValue().getValue());
+            }
+        }
+        return "";
+    }
+
+    void write(BeanModel model) throws IOException
+    {
+        String fqName = model.packageName.length()==0 ? model.mapperName : model.packageName+"."+model.mapperName;
+        PrintWriter out = new PrintWriter(this.processingEnv.getFiler().createSourceFile(fqName).openWriter());
+        try
+        {
+            if(model.packageName.length()>0)
+            {
+                out.println("package "+model.packageName+";");
+                out.println();
+            }
+            out.println("import java.sql.ResultSet;");
+            out.println("import java.sql.SQLException;");
+            out.println("import java.util.LinkedHashMap;");
+            out.println("import java.util.Map;");
+            out.println();
+            out.println("/**");
+            out.println(" * generated by "+IBeanMapperProcessor.class.getName()+", do not edit.");
+            out.println(" */");
+            out.println("@SuppressWarnings(\"unchecked\")");
+            out.println("public final class "+model.mapperName+" implements "+JBAO+".IBeanMapper<"+model.beanType+">");
+            out.println("{");
+
+            out.print("    static final String[] COLUMNS = {");
+            this.writeNames(out, model, false);
+            out.println(" };");
+            out.print("    static final String[] ID_COLUMNS = {");
+            this.writeNames(out, model, true);
+            out.println(" };");
+            out.println();
+
+            out.println("    public String[] columns()");
+            out.println("    {");
+            out.println("        return COLUMNS;");
+            out.println("    }");
+            out.println();
+            out.println("    public String[] idColumns()");
+            out.println("    {");
+            out.println("        return ID_COLUMNS;");
+            out.println("    }");
+            out.println();
+
+            out.println("    public "+model.beanType+" mapRow(ResultSet rs, int[] columnIndex) throws SQLException");
+            out.println("    {");
+            out.println("        "+model.beanType+" bean = new "+model.beanType+"();");
+            out.println("        int i;");
+            for(int c = 0; c < model.columns.size(); c++)
+            {
+                ColumnModel col = model.columns.get(c);
+                if(col.setterName==null)
+                {
+                    continue;
+                }
+                out.println("        if((i = columnIndex["+c+"]) > 0)");
+                out.println("        {");
+                out.println("            "+this.readColumn(col));
+                out.println("        }");
+            }
+            out.println("        return bean;");
+            out.println("    }");
+            out.println();
+
+            // same check as JBAO.BeanProperty.set for values taken as they come from the driver
+            out.println("    static <T> T cast(Object v, Class<T> type, String name) throws SQLException");
+            out.println("    {");
+            out.println("        if(v!=null && !type.isInstance(v))");
+            out.println("        {");
+            out.println("            throw new SQLException(\"Cannot set \"+name+\": incompatible types, cannot convert \"+v.getClass().getName()+\" to \"+type.getName());");
+            out.println("        }");
+            out.println("        return (T) v;");
+            out.println("    }");
+            out.println();
+
+            out.println("    public Map<String,Object> extractCols("+model.beanType+" bean, boolean inclIdField)");
+            out.println("    {");
+            out.println("        Map<String,Object> ret = new LinkedHashMap<String,Object>();");
+            for(ColumnModel col : model.columns)
+            {
+                String put = "ret.put("+this.literal(col.column)+", "+this.valueExpr(col)+");";
+                if(col.id)
+                {
+                    out.println("        if(inclIdField)");
+                    out.println("        {");
+                    out.println("            "+put);
+                    out.println("        }");
+                }
+                else
+                {
+                    out.println("        "+put);
+                }
+            }
+            out.println("        return ret;");
+            out.println("    }");
+            out.println();
+
+            out.println("    public Map<String,Object> extractIdKv("+model.beanType+" bean)");
+            out.println("    {");
+            out.println("        Map<String,Object> ret = new LinkedHashMap<String,Object>();");
+            for(ColumnModel col : model.columns)
+            {
+                if(col.id)
+                {
+                    out.println("        ret.put("+this.literal(col.column)+", "+col.readExpr+");");
+                }
+            }
+            out.println("        return ret;");
+            out.println("    }");
+            out.println("}");
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    void writeNames(PrintWriter out, BeanModel model, boolean idsOnly)
+    {
+        boolean first = true;
+        for(ColumnModel col : model.columns)
+        {
+            if(idsOnly && !col.id)
+            {
+                continue;
+            }
+            out.print(first ? " " : ", ");
+            out.print(this.literal(col.column));
+            first = false;
+        }
+    }
+
+    String valueExpr(ColumnModel col)
+    {
+        if(col.asString)
+        {
+            return "java.util.Objects.toString("+col.readExpr+", null)";
+        }
+        return col.readExpr;
+    }
+
+    String readColumn(ColumnModel col)
+    {
+        String type = col.setterType;
+        String rsGetter = RS_GETTERS.get(type);
+        String set = "bean."+col.setterName;
+        if(rsGetter!=null)
+        {
+            if(type.startsWith("java.lang.") && !type.equals("java.lang.String"))
+            {
+                // boxed primitives keep sql NULL as null
+                return type+" v = rs."+rsGetter+"(i); "+set+"(rs.wasNull() ? null : v);";
+            }
+            return set+"(rs."+rsGetter+"(i));";
+        }
+
+        TypeMirror tm = this.processingEnv.getElementUtils().getTypeElement(type)==null
+                ? null : this.processingEnv.getElementUtils().getTypeElement(type).asType();
+        if(tm!=null && this.processingEnv.getTypeUtils().asElement(tm).getKind()==ElementKind.ENUM)
+        {
+            return "String v = rs.getString(i); "+set+"(v==null ? null : "+type+".valueOf(v));";
+        }
+        if(type.equals("char"))
+        {
+            return "java.lang.Character v = cast(rs.getObject(i), java.lang.Character.class, "+this.literal(col.property)+"); "+set+"(v==null ? '\\0' : v.charValue());";
+        }
+        // other types are not converted, a mismatch fails with the same SQLException as the reflective path
+        return set+"(cast(rs.getObject(i), "+col.setterClass+".class, "+this.literal(col.property)+"));";
+    }
+
+    String literal(String s)
+    {
+        StringBuilder sb = new StringBuilder("\"");
+        for(char c : s.toCharArray())
+        {
+            if(c=='"' || c=='\\')
+            {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2017. terefang@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.terefang.jdao;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.dbutils.QueryRunner;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.sql.Connection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * asynchronous facade over JDAO/JBAO returning CompletableFutures.
+ * <p>
+ * every task borrows its own connection from the datasource and returns it when done,
+ * tasks run on a bounded executor sized to the connection pool so they never queue on the pool itself
+ * (on java 21+ each task gets a virtual thread and the pool alone bounds concurrency).
+ * a transaction runs as one task pinned to one connection.
+ *
+ */
+public class AsyncJDAO implements Closeable
+{
+	public static final int DEFAULT_POOL_SIZE = 8;
+
+	public static interface DaoCallable<T>
+	{
+		public T call(JDAO dao) throws Exception;
+	}
+
+	private final DataSource dataSource;
+	private final QueryRunner queryRunner;
+	private final int dbType;
+	private final ExecutorService executor;
+	private final boolean ownExecutor;
+	private boolean readOnly = false;
+
+	public AsyncJDAO(DataSource dataSource, int dbType, boolean pmt)
+	{
+		this(dataSource, dbType, new QueryRunner(pmt), createExecutor(poolSizeOf(dataSource)), true);
+	}
+
+	public AsyncJDAO(DataSource dataSource, int dbType, QueryRunner queryRunner, ExecutorService executor)
+	{
+		this(dataSource, dbType, queryRunner, executor, false);
+	}
+
+	AsyncJDAO(DataSource dataSource, int dbType, QueryRunner queryRunner, ExecutorService executor, boolean ownExecutor)
+	{
+		this.dataSource = dataSource;
+		this.dbType = dbType;
+		this.queryRunner = queryRunner;
+		this.executor = executor;
+		this.ownExecutor = ownExecutor;
+	}
+
+	/**
+	 * returns the maximum number of active connections of a dbcp datasource or DEFAULT_POOL_SIZE.
+	 *
+	 */
+	public static int poolSizeOf(DataSource dataSource)
+	{
+		if(dataSource instanceof BasicDataSource)
+		{
+			int max = ((BasicDataSource) dataSource).getMaxActive();
+			if(max>0)
+			{
+				return max;
+			}
+		}
+		return DEFAULT_POOL_SIZE;
+	}
+
+	/**
+	 * creates the task executor, platform threads bounded by size or virtual threads on java 21+,
+	 * size<=0 for no bound on either.
+	 *
+	 */
+	public static ExecutorService createExecutor(int size)
+	{
+		return JdaoExecutors.newTaskExecutor("jdao-async", size);
+	}
+
+	public int getDbType()
+	{
+		return dbType;
+	}
+
+	public boolean isReadOnly()
+	{
+		return readOnly;
+	}
+
+	public void setReadOnly(boolean readOnly)
+	{
+		this.readOnly = readOnly;
+	}
+
+	public ExecutorService getExecutor()
+	{
+		return executor;
+	}
+
+	JDAO borrow() throws Exception
+	{
+		Connection conn = this.dataSource.getConnection();
+		JDAO dao = new JDAO(conn, this.queryRunner);
+		dao.setDbType(this.dbType);
+		dao.setReadOnly(this.readOnly);
+		return dao;
+	}
+
+	/**
+	 * runs the work on its own connection.
+	 *
+	 */
+	public <T> CompletableFuture<T> submit(final DaoCallable<T> work)
+	{
+		return this.execute(work, false);
+	}
+
+	/**
+	 * runs the work in one transaction on one connection, committed on success and rolled back on error.
+	 *
+	 */
+	public <T> CompletableFuture<T> inTransaction(final DaoCallable<T> work)
+	{
+		return this.execute(work, true);
+	}
+
+	<T> CompletableFuture<T> execute(final DaoCallable<T> work, final boolean transaction)
+	{
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try
+		{
+			this.executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if(future.isDone())
+					{
+						// cancelled while queued
+						return;
+					}
+					try
+					{
+						future.complete(AsyncJDAO.this.call(work, transaction));
+					}
+					catch(Throwable xe)
+					{
+						future.completeExceptionally(xe);
+					}
+				}
+			});
+		}
+		catch(RejectedExecutionException xe)
+		{
+			future.completeExceptionally(xe);
+		}
+		return future;
+	}
+
+	<T> T call(DaoCallable<T> work, boolean transaction) throws Exception
+	{
+		JDAO dao = this.borrow();
+		try
+		{
+			if(!transaction)
+			{
+				return work.call(dao);
+			}
+
+			Connection conn = dao.getConnection();
+			boolean autoCommit = conn.getAutoCommit();
+			boolean committed = false;
+			conn.setAutoCommit(false);
+			try
+			{
+				T ret = work.call(dao);
+				conn.commit();
+				committed = true;
+				JDAO.afterCommit(dao.getQueryRunner(), conn);
+				return ret;
+			}
+			finally
+			{
+				// on any throwable, restoring autocommit would otherwise commit the partial transaction
+				if(committed)
+				{
+					conn.setAutoCommit(autoCommit);
+				}
+				else
+				{
+					AsyncJDAO.rollbackQuietly(conn, autoCommit);
+					JDAO.afterRollback(dao.getQueryRunner(), conn);
+				}
+			}
+		}
+		finally
+		{
+			dao.close();
+		}
+	}
+
+	/**
+	 * rolls back and restores autocommit without masking the error in flight. if the rollback fails
+	 * autocommit is left off, so closing the connection cannot commit the partial transaction.
+	 *
+	 */
+	static void rollbackQuietly(Connection conn, boolean autoCommit)
+	{
+		try
+		{
+			conn.rollback();
+			conn.setAutoCommit(autoCommit);
+		}
+		catch(Throwable xe)
+		{
+			JDAO.LOG.debug("error rolling back transaction", xe);
+		}
+	}
+
+	public CompletableFuture<List<Map<String,Object>>> queryForList(final String sql, final Object... args)
+	{
+		return this.submit(new DaoCallable<List<Map<String,Object>>>()
+		{
+			@Override
+			public List<Map<String,Object>> call(JDAO dao) throws Exception
+			{
+				return dao.queryForList(sql, args);
+			}
+		});
+	}
+
+	public CompletableFuture<Map<String,Object>> queryForMap(final String sql, final Object... args)
+	{
+		return this.submit(new DaoCallable<Map<String,Object>>()
+		{
+			@Override
+			public Map<String,Object> call(JDAO dao) throws Exception
+			{
+				return dao.queryForMap(sql, args);
+			}
+		});
+	}
+
+	public CompletableFuture<Object> queryForScalar(final String sql, final Object... args)
+	{
+		return this.submit(new DaoCallable<Object>()
+		{
+			@Override
+			public Object call(JDAO dao) throws Exception
+			{
+				return dao.queryForScalar(sql, args);
+			}
+		});
+	}
+
+	public CompletableFuture<Integer> update(final String sql, final Object... args)
+	{
+		return this.submit(new DaoCallable<Integer>()
+		{
+			@Override
+			public Integer call(JDAO dao) throws Exception
+			{
+				return dao.update(sql, args);
+			}
+		});
+	}
+
+	public CompletableFuture<Integer> insert(final String table, final Map cols)
+	{
+		return this.insert(table, cols, false);
+	}
+
+	public CompletableFuture<Integer> insert(final String table, final Map cols, final boolean onDuplicateKeyUpdate)
+	{
+		return this.submit(new DaoCallable<Integer>()
+		{
+			@Override
+			public Integer call(JDAO dao) throws Exception
+			{
+				return dao.insert(table, cols, onDuplicateKeyUpdate);
+			}
+		});
+	}
+
+	public <T> CompletableFuture<T> queryForBean(final String sql, final Class<T> beanClazz, final Object... args)
+	{
+		return this.submit(new DaoCallable<T>()
+		{
+			@Override
+			public T call(JDAO dao) throws Exception
+			{
+				return JBAO.from(dao).queryForBean(sql, beanClazz, args);
+			}
+		});
+	}
+
+	public <T> CompletableFuture<List<T>> queryForBeanList(final String sql, final Class<T> beanClazz, final Object... args)
+	{
+		return this.submit(new DaoCallable<List<T>>()
+		{
+			@Override
+			public List<T> call(JDAO dao) throws Exception
+			{
+				return JBAO.from(dao).queryForBeanList(sql, beanClazz, args);
+			}
+		});
+	}
+
+	public <T> CompletableFuture<Integer> insertBean(final String table, final JBAO.IBean bean, final Class<T> beanClazz)
+	{
+		return this.submit(new DaoCallable<Integer>()
+		{
+			@Override
+			public Integer call(JDAO dao) throws Exception
+			{
+				return JBAO.from(dao).insertBean(table, bean, beanClazz);
+			}
+		});
+	}
+
+	public <T> CompletableFuture<Integer> updateBean(final String table, final Object bean, final Class<T> beanClazz)
+	{
+		return this.submit(new DaoCallable<Integer>()
+		{
+			@Override
+			public Integer call(JDAO dao) throws Exception
+			{
+				return JBAO.from(dao).updateBean(table, bean, beanClazz);
+			}
+		});
+	}
+
+	/**
+	 * shuts down the executor if it was created by this facade.
+	 *
+	 */
+	@Override
+	public void close()
+	{
+		if(this.ownExecutor)
+		{
+			this.executor.shutdown();
+		}
+	}
+}
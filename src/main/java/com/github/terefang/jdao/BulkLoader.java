@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2017. terefang@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.terefang.jdao;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.commons.dbutils.QueryRunner;
+
+import java.sql.Connection;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * multi-threaded bulk loader on top of JDAO.insertList.
+ * <p>
+ * the producer (calling thread) cuts rows into chunks and puts them on a bounded queue, blocking when
+ * the workers fall behind. every worker holds its own connection from the datasource and writes each
+ * chunk as jdbc batches in one transaction. the first failure stops the load and is rethrown,
+ * chunks committed before stay committed. workers poll the queue and exit on a failure or once the
+ * producer is done and the queue is drained, so workers that died early never block the shutdown.
+ *
+ */
+public class BulkLoader
+{
+	public static final int DEFAULT_WORKERS = 4;
+	public static final int DEFAULT_CHUNK_SIZE = 1000;
+	public static final int DEFAULT_QUEUE_CAPACITY = 8;
+
+	static final long POLL_MILLIS = 100L;
+
+	private final QueryRunner queryRunner;
+	private final int dbType;
+	private final String table;
+
+	private int workers = DEFAULT_WORKERS;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	private boolean onDuplicateKeyUpdate = false;
+	private Collection updateFields = null;
+
+	public BulkLoader(QueryRunner queryRunner, int dbType, String table)
+	{
+		if(queryRunner.getDataSource()==null)
+		{
+			throw new IllegalArgumentException("bulk loader needs a query runner with datasource");
+		}
+		this.queryRunner = queryRunner;
+		this.dbType = dbType;
+		this.table = table;
+	}
+
+	public int getWorkers()
+	{
+		return workers;
+	}
+
+	public void setWorkers(int workers)
+	{
+		this.workers = workers;
+	}
+
+	public int getChunkSize()
+	{
+		return chunkSize;
+	}
+
+	/**
+	 * rows per chunk, each chunk is one transaction.
+	 *
+	 */
+	public void setChunkSize(int chunkSize)
+	{
+		this.chunkSize = chunkSize;
+	}
+
+	public int getQueueCapacity()
+	{
+		return queueCapacity;
+	}
+
+	/**
+	 * number of chunks the producer may be ahead of the workers.
+	 *
+	 */
+	public void setQueueCapacity(int queueCapacity)
+	{
+		this.queueCapacity = queueCapacity;
+	}
+
+	public void setOnDuplicateKeyUpdate(boolean onDuplicateKeyUpdate, Collection updateFields)
+	{
+		this.onDuplicateKeyUpdate = onDuplicateKeyUpdate;
+		this.updateFields = updateFields;
+	}
+
+	public Stats load(Stream<? extends Map> rows) throws Exception
+	{
+		try
+		{
+			return this.load(rows.iterator());
+		}
+		finally
+		{
+			rows.close();
+		}
+	}
+
+	public Stats load(Iterator<? extends Map> rows) throws Exception
+	{
+		int nWorkers = this.workers<=0 ? DEFAULT_WORKERS : this.workers;
+		int nChunk = this.chunkSize<=0 ? DEFAULT_CHUNK_SIZE : this.chunkSize;
+		int nQueue = this.queueCapacity<=0 ? DEFAULT_QUEUE_CAPACITY : this.queueCapacity;
+
+		final BlockingQueue<List<Map>> queue = new ArrayBlockingQueue<List<Map>>(nQueue);
+		final Stats stats = new Stats();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final AtomicBoolean produced = new AtomicBoolean(false);
+		long start = System.nanoTime();
+
+		ExecutorService executor = JdaoExecutors.newTaskExecutor("jdao-bulk", nWorkers);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		try
+		{
+			for(int i = 0; i < nWorkers; i++)
+			{
+				futures.add(executor.submit(new Callable<Void>()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						try
+						{
+							BulkLoader.this.work(queue, stats, failure, produced);
+						}
+						catch(Exception xe)
+						{
+							// let the producer stop early
+							failure.compareAndSet(null, xe);
+							throw xe;
+						}
+						return null;
+					}
+				}));
+			}
+
+			List<Map> chunk = new ArrayList<Map>(nChunk);
+			while(rows.hasNext() && failure.get()==null)
+			{
+				chunk.add(rows.next());
+				if(chunk.size()>=nChunk)
+				{
+					this.put(queue, chunk, stats, failure);
+					chunk = new ArrayList<Map>(nChunk);
+				}
+			}
+			if(!chunk.isEmpty() && failure.get()==null)
+			{
+				this.put(queue, chunk, stats, failure);
+			}
+		}
+		catch(Exception xe)
+		{
+			// stop the workers after their current chunk
+			failure.compareAndSet(null, xe);
+			throw xe;
+		}
+		finally
+		{
+			// workers exit once the queue is drained or on the first failure
+			produced.set(true);
+			boolean interrupted = false;
+			for(Future<?> f : futures)
+			{
+				try
+				{
+					f.get();
+				}
+				catch(ExecutionException xe)
+				{
+					failure.compareAndSet(null, xe.getCause());
+				}
+				catch(InterruptedException xe)
+				{
+					failure.compareAndSet(null, xe);
+					interrupted = true;
+					break;
+				}
+			}
+			if(interrupted)
+			{
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+			else
+			{
+				executor.shutdown();
+			}
+			stats.elapsedNanos = System.nanoTime()-start;
+		}
+
+		Throwable xe = failure.get();
+		if(xe!=null)
+		{
+			if(xe instanceof Exception)
+			{
+				throw (Exception) xe;
+			}
+			throw new ExecutionException(xe);
+		}
+		return stats;
+	}
+
+	void put(BlockingQueue<List<Map>> queue, List<Map> chunk, Stats stats, AtomicReference<Throwable> failure) throws InterruptedException
+	{
+		long t0 = System.nanoTime();
+		while(!queue.offer(chunk, POLL_MILLIS, TimeUnit.MILLISECONDS))
+		{
+			if(failure.get()!=null)
+			{
+				// workers are gone, drop the chunk
+				return;
+			}
+		}
+		stats.producerWaitNanos.addAndGet(System.nanoTime()-t0);
+	}
+
+	void work(BlockingQueue<List<Map>> queue, Stats stats, AtomicReference<Throwable> failure, AtomicBoolean produced) throws Exception
+	{
+		Connection conn = this.queryRunner.getDataSource().getConnection();
+		boolean autoCommit = conn.getAutoCommit();
+		try
+		{
+			conn.setAutoCommit(false);
+			while(failure.get()==null)
+			{
+				// once produced is seen, an empty queue stays empty
+				boolean last = produced.get();
+				List<Map> chunk = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if(chunk==null)
+				{
+					if(last)
+					{
+						return;
+					}
+					continue;
+				}
+				try
+				{
+					JDAO.insertList(this.dbType, conn, this.queryRunner, this.table, chunk, this.onDuplicateKeyUpdate, this.updateFields, chunk.size());
+					conn.commit();
+					JDAO.afterCommit(this.queryRunner, conn);
+					stats.rows.addAndGet(chunk.size());
+					stats.chunks.incrementAndGet();
+				}
+				catch(Exception xe)
+				{
+					conn.rollback();
+					JDAO.afterRollback(this.queryRunner, conn);
+					failure.compareAndSet(null, xe);
+				}
+			}
+		}
+		finally
+		{
+			try
+			{
+				conn.setAutoCommit(autoCommit);
+			}
+			finally
+			{
+				DbUtils.closeQuietly(conn);
+			}
+		}
+	}
+
+	/**
+	 * throughput figures of a load.
+	 *
+	 */
+	public static class Stats
+	{
+		final AtomicLong rows = new AtomicLong();
+		final AtomicLong chunks = new AtomicLong();
+		final AtomicLong producerWaitNanos = new AtomicLong();
+		volatile long elapsedNanos = 0L;
+
+		public long getRows()
+		{
+			return rows.get();
+		}
+
+		public long getChunks()
+		{
+			return chunks.get();
+		}
+
+		public long getElapsedMillis()
+		{
+			return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+		}
+
+		/**
+		 * time the producer was blocked on a full queue.
+		 *
+		 */
+		public long getProducerWaitMillis()
+		{
+			return TimeUnit.NANOSECONDS.toMillis(producerWaitNanos.get());
+		}
+
+		public double getRowsPerSecond()
+		{
+			return elapsedNanos==0L ? 0.0 : rows.get()*1e9/elapsedNanos;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "rows="+getRows()+", chunks="+getChunks()+", elapsed="+getElapsedMillis()+"ms, rows/s="+Math.round(getRowsPerSecond())+", producerWait="+getProducerWaitMillis()+"ms";
+		}
+	}
+}
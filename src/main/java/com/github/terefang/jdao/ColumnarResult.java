@@ -0,0 +1,498 @@
+/*
+ * Copyright (c) 2017. terefang@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.terefang.jdao;
+
+import org.apache.commons.dbutils.ResultSetHandler;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.*;
+
+/**
+ * column-oriented query result.
+ * <p>
+ * integral columns are held in long[], floating point columns in double[] (both with a null bitmap),
+ * text columns in String[] and everything else in Object[], including non-integral decimals (as BigDecimal).
+ *
+ */
+public class ColumnarResult
+{
+	// small lookups stay small, large results grow by doubling
+	static final int INITIAL_CAPACITY = 16;
+
+	private final Column[] columns;
+	private final Map<String,Integer> index;
+	private int rowCount = 0;
+
+	ColumnarResult(Column[] columns)
+	{
+		this.columns = columns;
+		this.index = new HashMap<String,Integer>(columns.length*2);
+		for(int i = columns.length-1; i >= 0; i--)
+		{
+			this.index.put(columns[i].getName(), i);
+		}
+	}
+
+	public int getRowCount()
+	{
+		return rowCount;
+	}
+
+	public int getColumnCount()
+	{
+		return columns.length;
+	}
+
+	public Column getColumn(int i)
+	{
+		return columns[i];
+	}
+
+	/**
+	 * returns the column by its (case-insensitive) label or null.
+	 *
+	 */
+	public Column getColumn(String name)
+	{
+		Integer i = this.index.get(name.toLowerCase());
+		return i==null ? null : columns[i];
+	}
+
+	public List<Column> getColumns()
+	{
+		return Collections.unmodifiableList(Arrays.asList(columns));
+	}
+
+	public LongColumn getLongColumn(String name)
+	{
+		return (LongColumn) this.getColumn(name);
+	}
+
+	public DoubleColumn getDoubleColumn(String name)
+	{
+		return (DoubleColumn) this.getColumn(name);
+	}
+
+	public StringColumn getStringColumn(String name)
+	{
+		return (StringColumn) this.getColumn(name);
+	}
+
+	public ObjectColumn getObjectColumn(String name)
+	{
+		return (ObjectColumn) this.getColumn(name);
+	}
+
+	/**
+	 * trims all column arrays to the row count.
+	 *
+	 */
+	public void trimToSize()
+	{
+		for(Column c : columns)
+		{
+			c.trim(this.rowCount);
+		}
+	}
+
+	public static abstract class Column
+	{
+		final String name;
+		final int sqlType;
+
+		Column(String name, int sqlType)
+		{
+			this.name = name;
+			this.sqlType = sqlType;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public int getSqlType()
+		{
+			return sqlType;
+		}
+
+		public abstract int size();
+
+		public abstract boolean isNull(int row);
+
+		public abstract Object getObject(int row);
+
+		abstract void read(ResultSet rs, int col, int row) throws SQLException;
+
+		abstract void trim(int size);
+
+		static int grow(int capacity, int row)
+		{
+			int n = capacity < INITIAL_CAPACITY ? INITIAL_CAPACITY : capacity;
+			while(n <= row)
+			{
+				n = n << 1;
+			}
+			return n;
+		}
+	}
+
+	public static class LongColumn extends Column
+	{
+		long[] values = new long[INITIAL_CAPACITY];
+		final BitSet nulls = new BitSet();
+		int size = 0;
+
+		LongColumn(String name, int sqlType)
+		{
+			super(name, sqlType);
+		}
+
+		@Override
+		void read(ResultSet rs, int col, int row) throws SQLException
+		{
+			if(row >= values.length)
+			{
+				values = Arrays.copyOf(values, grow(values.length, row));
+			}
+			values[row] = rs.getLong(col);
+			if(rs.wasNull())
+			{
+				nulls.set(row);
+			}
+			size = row+1;
+		}
+
+		@Override
+		void trim(int size)
+		{
+			values = Arrays.copyOf(values, size);
+		}
+
+		@Override
+		public int size()
+		{
+			return size;
+		}
+
+		@Override
+		public boolean isNull(int row)
+		{
+			return nulls.get(row);
+		}
+
+		public long getLong(int row)
+		{
+			return values[row];
+		}
+
+		@Override
+		public Object getObject(int row)
+		{
+			return nulls.get(row) ? null : Long.valueOf(values[row]);
+		}
+
+		/**
+		 * returns the backing array, it may be longer than size().
+		 *
+		 */
+		public long[] getValues()
+		{
+			return values;
+		}
+
+		public BitSet getNulls()
+		{
+			return nulls;
+		}
+	}
+
+	public static class DoubleColumn extends Column
+	{
+		double[] values = new double[INITIAL_CAPACITY];
+		final BitSet nulls = new BitSet();
+		int size = 0;
+
+		DoubleColumn(String name, int sqlType)
+		{
+			super(name, sqlType);
+		}
+
+		@Override
+		void read(ResultSet rs, int col, int row) throws SQLException
+		{
+			if(row >= values.length)
+			{
+				values = Arrays.copyOf(values, grow(values.length, row));
+			}
+			values[row] = rs.getDouble(col);
+			if(rs.wasNull())
+			{
+				nulls.set(row);
+			}
+			size = row+1;
+		}
+
+		@Override
+		void trim(int size)
+		{
+			values = Arrays.copyOf(values, size);
+		}
+
+		@Override
+		public int size()
+		{
+			return size;
+		}
+
+		@Override
+		public boolean isNull(int row)
+		{
+			return nulls.get(row);
+		}
+
+		public double getDouble(int row)
+		{
+			return values[row];
+		}
+
+		@Override
+		public Object getObject(int row)
+		{
+			return nulls.get(row) ? null : Double.valueOf(values[row]);
+		}
+
+		/**
+		 * returns the backing array, it may be longer than size().
+		 *
+		 */
+		public double[] getValues()
+		{
+			return values;
+		}
+
+		public BitSet getNulls()
+		{
+			return nulls;
+		}
+	}
+
+	public static class StringColumn extends Column
+	{
+		String[] values = new String[INITIAL_CAPACITY];
+		int size = 0;
+
+		StringColumn(String name, int sqlType)
+		{
+			super(name, sqlType);
+		}
+
+		@Override
+		void read(ResultSet rs, int col, int row) throws SQLException
+		{
+			if(row >= values.length)
+			{
+				values = Arrays.copyOf(values, grow(values.length, row));
+			}
+			values[row] = rs.getString(col);
+			size = row+1;
+		}
+
+		@Override
+		void trim(int size)
+		{
+			values = Arrays.copyOf(values, size);
+		}
+
+		@Override
+		public int size()
+		{
+			return size;
+		}
+
+		@Override
+		public boolean isNull(int row)
+		{
+			return values[row]==null;
+		}
+
+		public String getString(int row)
+		{
+			return values[row];
+		}
+
+		@Override
+		public Object getObject(int row)
+		{
+			return values[row];
+		}
+
+		/**
+		 * returns the backing array, it may be longer than size().
+		 *
+		 */
+		public String[] getValues()
+		{
+			return values;
+		}
+	}
+
+	public static class ObjectColumn extends Column
+	{
+		Object[] values = new Object[INITIAL_CAPACITY];
+		int size = 0;
+
+		ObjectColumn(String name, int sqlType)
+		{
+			super(name, sqlType);
+		}
+
+		@Override
+		void read(ResultSet rs, int col, int row) throws SQLException
+		{
+			if(row >= values.length)
+			{
+				values = Arrays.copyOf(values, grow(values.length, row));
+			}
+			values[row] = rs.getObject(col);
+			size = row+1;
+		}
+
+		@Override
+		void trim(int size)
+		{
+			values = Arrays.copyOf(values, size);
+		}
+
+		@Override
+		public int size()
+		{
+			return size;
+		}
+
+		@Override
+		public boolean isNull(int row)
+		{
+			return values[row]==null;
+		}
+
+		@Override
+		public Object getObject(int row)
+		{
+			return values[row];
+		}
+
+		/**
+		 * returns the backing array, it may be longer than size().
+		 *
+		 */
+		public Object[] getValues()
+		{
+			return values;
+		}
+	}
+
+	static Column columnFor(ResultSetMetaData rsmd, int i) throws SQLException
+	{
+		String name = rsmd.getColumnLabel(i);
+		if(name==null)
+		{
+			name = rsmd.getColumnName(i);
+		}
+		name = name.toLowerCase();
+
+		int sqlType = rsmd.getColumnType(i);
+		switch(sqlType)
+		{
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT:
+			{
+				return new LongColumn(name, sqlType);
+			}
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+			{
+				// integral decimals that fit into a long, others stay exact (BigDecimal)
+				int precision = rsmd.getPrecision(i);
+				if(rsmd.getScale(i)==0 && precision>0 && precision<=18)
+				{
+					return new LongColumn(name, sqlType);
+				}
+				return new ObjectColumn(name, sqlType);
+			}
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+			{
+				return new DoubleColumn(name, sqlType);
+			}
+			case Types.CHAR:
+			case Types.VARCHAR:
+			case Types.LONGVARCHAR:
+			case Types.NCHAR:
+			case Types.NVARCHAR:
+			case Types.LONGNVARCHAR:
+			case Types.CLOB:
+			case Types.NCLOB:
+			{
+				return new StringColumn(name, sqlType);
+			}
+			default:
+			{
+				return new ObjectColumn(name, sqlType);
+			}
+		}
+	}
+
+	/**
+	 * reads a result set column by column into typed arrays.
+	 *
+	 */
+	public static class ColumnarHandler implements ResultSetHandler<ColumnarResult>
+	{
+		public ColumnarHandler() { super(); }
+
+		@Override
+		public ColumnarResult handle(ResultSet rs) throws SQLException
+		{
+			ResultSetMetaData rsmd = rs.getMetaData();
+			int cols = rsmd.getColumnCount();
+			Column[] columns = new Column[cols];
+			for(int i = 0; i < cols; i++)
+			{
+				columns[i] = columnFor(rsmd, i+1);
+			}
+
+			ColumnarResult result = new ColumnarResult(columns);
+			int row = 0;
+			while(rs.next())
+			{
+				for(int i = 0; i < cols; i++)
+				{
+					columns[i].read(rs, i+1, row);
+				}
+				row++;
+			}
+			result.rowCount = row;
+			return result;
+		}
+	}
+}
@@ -2,21 +2,37 @@ package com.github.terefang.jdao;
 
 import org.apache.commons.dbutils.BasicRowProcessor;
 import org.apache.commons.dbutils.BeanProcessor;
+import org.apache.commons.dbutils.DbUtils;
 import org.apache.commons.dbutils.ResultSetHandler;
 import org.apache.commons.dbutils.handlers.BeanHandler;
 import org.apache.commons.dbutils.handlers.BeanListHandler;
 import org.apache.commons.dbutils.handlers.BeanMapHandler;
 import org.apache.commons.lang3.reflect.FieldUtils;
 
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class JBAO 
 {
@@ -38,6 +54,72 @@ public class JBAO
     {
     }
 
+    /**
+     * row mapper and column extractor for one bean class, generated at compile time by jdao-apt.
+     * <p>
+     * the mapper of a bean class a.b.Outer$Bean is looked up as a.b.Outer_Bean_IBeanMapper.
+     *
+     */
+    public interface IBeanMapper<T>
+    {
+        public static final String MAPPER_SUFFIX = "_IBeanMapper";
+
+        /**
+         * column names in field order.
+         *
+         */
+        public String[] columns();
+
+        public String[] idColumns();
+
+        /**
+         * maps the current row, columnIndex holds the result set column (1-based, 0 if absent) per columns() entry.
+         *
+         */
+        public T mapRow(ResultSet rs, int[] columnIndex) throws SQLException;
+
+        public Map<String,Object> extractCols(T bean, boolean inclIdField);
+
+        public Map<String,Object> extractIdKv(T bean);
+    }
+
+    static final Object NO_MAPPER = new Object();
+    static final Map<Class, Object> mapperCache = new ConcurrentHashMap<Class, Object>();
+
+    /**
+     * returns the generated mapper for the bean class or null.
+     *
+     */
+    public static <T> IBeanMapper<T> mapperFor(Class<T> _beanClazz)
+    {
+        Object _mapper = mapperCache.get(_beanClazz);
+        if(_mapper==null)
+        {
+            _mapper = NO_MAPPER;
+            String _name = _beanClazz.getName();
+            int _dot = _name.lastIndexOf('.');
+            _name = _name.substring(0, _dot+1)+_name.substring(_dot+1).replace('$', '_')+IBeanMapper.MAPPER_SUFFIX;
+            try
+            {
+                Class _mapperClazz = Class.forName(_name, true, _beanClazz.getClassLoader());
+                if(IBeanMapper.class.isAssignableFrom(_mapperClazz))
+                {
+                    _mapper = _mapperClazz.getDeclaredConstructor().newInstance();
+                }
+            }
+            catch(ClassNotFoundException xe)
+            {
+                // no generated mapper
+            }
+            catch(Exception xe)
+            {
+                JDAO.LOG.debug("cannot instantiate "+_name, xe);
+            }
+            mapperCache.put(_beanClazz, _mapper);
+        }
+        return _mapper==NO_MAPPER ? null : (IBeanMapper<T>) _mapper;
+    }
+
     @Target(value= ElementType.FIELD)
     @Retention(value= RetentionPolicy.RUNTIME)
     public @interface IBeanField
@@ -58,29 +140,150 @@ public class JBAO
     {
     }
     
+    /**
+     * bean processor for IBean classes, mapping columns by @IBeanField.
+     * <p>
+     * processors are cached per class, the column-to-setter plan is computed once per
+     * column label signature and setters are called through method handles.
+     *
+     */
     public static class IBeanProcessor<T> extends BeanProcessor
     {
+        static final int PLAN_CACHE_SIZE = 64;
+
+        static final Map<Class, IBeanProcessor> processorCache = new ConcurrentHashMap<Class, IBeanProcessor>();
+        static final Map<Class, BasicRowProcessor> rowProcessorCache = new ConcurrentHashMap<Class, BasicRowProcessor>();
+
         private Class<T> type;
+        private Map<String, BeanProperty> columnProperties;
+        private MethodHandle constructor;
+        private final Map<String, BeanProperty[]> planCache = new ConcurrentHashMap<String, BeanProperty[]>();
+        private volatile LastPlan lastPlan = null;
+        private IBeanMapper<T> mapper;
+        private final Map<String, int[]> indexCache = new ConcurrentHashMap<String, int[]>();
+        private volatile LastIndex lastIndex = null;
 
         public static <T> IBeanProcessor<T> of(Class<T> type)
         {
-            IBeanProcessor abp = new IBeanProcessor();
-            abp.type = type;
+            IBeanProcessor abp = processorCache.get(type);
+            if(abp==null)
+            {
+                abp = new IBeanProcessor();
+                abp.type = type;
+                abp.init();
+                processorCache.put(type, abp);
+            }
             return abp;
         }
 
-        private IBeanProcessor()
+        /**
+         * returns the cached row processor for the given IBean class.
+         *
+         */
+        public static BasicRowProcessor rowProcessorFor(Class type)
         {
+            BasicRowProcessor rp = rowProcessorCache.get(type);
+            if(rp==null)
+            {
+                rp = new BasicRowProcessor(IBeanProcessor.of(type));
+                rowProcessorCache.put(type, rp);
+            }
+            return rp;
         }
 
-        protected int[] mapColumnsToProperties(ResultSetMetaData rsmd, PropertyDescriptor[] props) throws SQLException
+        private IBeanProcessor()
         {
-            int cols = rsmd.getColumnCount();
-            int[] columnToProperty = new int[ cols+1];
+        }
 
-            Arrays.fill(columnToProperty, -1);
+        private void init()
+        {
+            this.mapper = mapperFor(this.type);
+            PropertyDescriptor[] props;
+            try
+            {
+                props = Introspector.getBeanInfo(this.type).getPropertyDescriptors();
+            }
+            catch(IntrospectionException xe)
+            {
+                throw new IllegalArgumentException("bean introspection failed for "+this.type.getName(), xe);
+            }
 
+            Map<String, BeanProperty> _map = new HashMap<String, BeanProperty>();
+            Set<String> _seen = new HashSet<String>();
             List<Field> fieldList = FieldUtils.getFieldsListWithAnnotation(this.type, IBeanField.class);
+            for(Field f : fieldList)
+            {
+                String fName = f.getAnnotation(IBeanField.class).value().toLowerCase();
+                if(!_seen.add(fName))
+                {
+                    // first field wins, as with the column scan
+                    continue;
+                }
+                for(int i = 0; i < props.length; ++i)
+                {
+                    if(f.getName().equalsIgnoreCase(props[i].getName()))
+                    {
+                        BeanProperty bp = BeanProperty.of(props[i], i);
+                        if(bp!=null)
+                        {
+                            _map.put(fName, bp);
+                        }
+                        break;
+                    }
+                }
+            }
+            this.columnProperties = _map;
+
+            try
+            {
+                Constructor<T> c = this.type.getDeclaredConstructor();
+                c.setAccessible(true);
+                this.constructor = MethodHandles.lookup().unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+            }
+            catch(Exception xe)
+            {
+                // fall back to BeanProcessor.newInstance
+                this.constructor = null;
+            }
+        }
+
+        /**
+         * returns the property per column (1-based, index 0 unused) for the result set.
+         *
+         */
+        BeanProperty[] planFor(ResultSetMetaData rsmd) throws SQLException
+        {
+            LastPlan _last = this.lastPlan;
+            if(_last!=null && _last.rsmd.get()==rsmd)
+            {
+                return _last.plan;
+            }
+
+            int cols = rsmd.getColumnCount();
+            String[] labels = labelsOf(rsmd);
+            String _key = signatureOf(labels);
+            BeanProperty[] plan = this.planCache.get(_key);
+            if(plan==null)
+            {
+                plan = new BeanProperty[cols+1];
+                for(int col = 1; col <= cols; ++col)
+                {
+                    plan[col] = this.columnProperties.get(labels[col].toLowerCase());
+                }
+                if(this.planCache.size() >= PLAN_CACHE_SIZE)
+                {
+                    this.planCache.clear();
+                }
+                this.planCache.put(_key, plan);
+            }
+            this.lastPlan = new LastPlan(rsmd, plan);
+            return plan;
+        }
+
+        static String[] labelsOf(ResultSetMetaData rsmd) throws SQLException
+        {
+            int cols = rsmd.getColumnCount();
+            String[] labels = new String[cols+1];
             for(int col = 1; col <= cols; ++col)
             {
                 String columnName = rsmd.getColumnLabel(col);
@@ -88,29 +291,282 @@ public class JBAO
                 {
                     columnName = rsmd.getColumnName(col);
                 }
+                labels[col] = columnName;
+            }
+            return labels;
+        }
+
+        static String signatureOf(String[] labels)
+        {
+            StringBuilder _sig = new StringBuilder();
+            for(int col = 1; col < labels.length; ++col)
+            {
+                _sig.append(labels[col]).append('\0');
+            }
+            return _sig.toString();
+        }
 
-                for(Field f : fieldList)
+        /**
+         * returns the result set column per mapper column, the last matching column wins
+         * and a repeated mapper column is only read once.
+         *
+         */
+        int[] columnIndexFor(ResultSetMetaData rsmd) throws SQLException
+        {
+            LastIndex _last = this.lastIndex;
+            if(_last!=null && _last.rsmd.get()==rsmd)
+            {
+                return _last.columnIndex;
+            }
+
+            String[] labels = labelsOf(rsmd);
+            String _key = signatureOf(labels);
+            int[] columnIndex = this.indexCache.get(_key);
+            if(columnIndex==null)
+            {
+                String[] mapped = this.mapper.columns();
+                columnIndex = new int[mapped.length];
+                Set<String> _seen = new HashSet<String>();
+                for(int i = 0; i < mapped.length; i++)
                 {
-                    String fName = f.getAnnotation(IBeanField.class).value();
-                    String pName = f.getName();
-                    if(fName.equalsIgnoreCase(columnName))
+                    if(!_seen.add(mapped[i].toLowerCase()))
                     {
-                        for(int i = 0; i < props.length; ++i)
+                        continue;
+                    }
+                    for(int col = 1; col < labels.length; ++col)
+                    {
+                        if(mapped[i].equalsIgnoreCase(labels[col]))
                         {
-                            String propName = props[i].getName();
-                            if(pName.equalsIgnoreCase(propName))
-                            {
-                                columnToProperty[col] = i;
-                                break;
-                            }
+                            columnIndex[i] = col;
                         }
-                        break;
                     }
                 }
+                if(this.indexCache.size() >= PLAN_CACHE_SIZE)
+                {
+                    this.indexCache.clear();
+                }
+                this.indexCache.put(_key, columnIndex);
+            }
+            this.lastIndex = new LastIndex(rsmd, columnIndex);
+            return columnIndex;
+        }
+
+        protected int[] mapColumnsToProperties(ResultSetMetaData rsmd, PropertyDescriptor[] props) throws SQLException
+        {
+            BeanProperty[] plan = this.planFor(rsmd);
+            int[] columnToProperty = new int[plan.length];
+
+            Arrays.fill(columnToProperty, -1);
+
+            for(int col = 1; col < plan.length; ++col)
+            {
+                if(plan[col]!=null)
+                {
+                    columnToProperty[col] = plan[col].index;
+                }
             }
 
             return columnToProperty;
         }
+
+        @Override
+        public <X> X toBean(ResultSet rs, Class<X> type) throws SQLException
+        {
+            if(type!=this.type)
+            {
+                return super.toBean(rs, type);
+            }
+            if(this.mapper!=null)
+            {
+                return (X) this.mapper.mapRow(rs, this.columnIndexFor(rs.getMetaData()));
+            }
+            return (X) this.createBean(rs, this.planFor(rs.getMetaData()));
+        }
+
+        @Override
+        public <X> List<X> toBeanList(ResultSet rs, Class<X> type) throws SQLException
+        {
+            if(type!=this.type)
+            {
+                return super.toBeanList(rs, type);
+            }
+            List<X> results = new ArrayList<X>();
+            if(!rs.next())
+            {
+                return results;
+            }
+            if(this.mapper!=null)
+            {
+                int[] columnIndex = this.columnIndexFor(rs.getMetaData());
+                do
+                {
+                    results.add((X) this.mapper.mapRow(rs, columnIndex));
+                }
+                while(rs.next());
+                return results;
+            }
+            BeanProperty[] plan = this.planFor(rs.getMetaData());
+            do
+            {
+                results.add((X) this.createBean(rs, plan));
+            }
+            while(rs.next());
+            return results;
+        }
+
+        T createBean(ResultSet rs, BeanProperty[] plan) throws SQLException
+        {
+            T bean;
+            if(this.constructor!=null)
+            {
+                try
+                {
+                    bean = (T) this.constructor.invokeExact();
+                }
+                catch(Throwable xe)
+                {
+                    throw new SQLException("Cannot create "+this.type.getName()+": "+xe.getMessage(), xe);
+                }
+            }
+            else
+            {
+                bean = this.newInstance(this.type);
+            }
+
+            for(int col = 1; col < plan.length; ++col)
+            {
+                BeanProperty bp = plan[col];
+                if(bp==null)
+                {
+                    continue;
+                }
+                Object value = this.processColumn(rs, col, bp.type);
+                bp.set(bean, value);
+            }
+            return bean;
+        }
+
+        /**
+         * index of the last result set seen, holding its metadata weakly so closed results and connections are not kept alive.
+         *
+         */
+        static final class LastIndex
+        {
+            final WeakReference<ResultSetMetaData> rsmd;
+            final int[] columnIndex;
+
+            LastIndex(ResultSetMetaData rsmd, int[] columnIndex)
+            {
+                this.rsmd = new WeakReference<ResultSetMetaData>(rsmd);
+                this.columnIndex = columnIndex;
+            }
+        }
+
+        static final class LastPlan
+        {
+            final WeakReference<ResultSetMetaData> rsmd;
+            final BeanProperty[] plan;
+
+            LastPlan(ResultSetMetaData rsmd, BeanProperty[] plan)
+            {
+                this.rsmd = new WeakReference<ResultSetMetaData>(rsmd);
+                this.plan = plan;
+            }
+        }
+    }
+
+    /**
+     * writable bean property with its setter as method handle.
+     *
+     */
+    static final class BeanProperty
+    {
+        final String name;
+        final int index;
+        final Class type;
+        final Class boxedType;
+        final Object primitiveDefault;
+        final MethodHandle setter;
+
+        BeanProperty(String name, int index, Class type, MethodHandle setter)
+        {
+            this.name = name;
+            this.index = index;
+            this.type = type;
+            this.boxedType = type.isPrimitive() ? MethodType.methodType(type).wrap().returnType() : type;
+            this.primitiveDefault = type.isPrimitive() ? Array.get(Array.newInstance(type, 1), 0) : null;
+            this.setter = setter;
+        }
+
+        static BeanProperty of(PropertyDescriptor prop, int index)
+        {
+            Method m = prop.getWriteMethod();
+            if(m==null || m.getParameterTypes().length!=1)
+            {
+                return null;
+            }
+            try
+            {
+                m.setAccessible(true);
+                MethodHandle mh = MethodHandles.lookup().unreflect(m)
+                        .asType(MethodType.methodType(void.class, Object.class, Object.class));
+                return new BeanProperty(prop.getName(), index, m.getParameterTypes()[0], mh);
+            }
+            catch(Exception xe)
+            {
+                return null;
+            }
+        }
+
+        /**
+         * sets the value with the same conversions as BeanProcessor.callSetter.
+         *
+         */
+        void set(Object bean, Object value) throws SQLException
+        {
+            if(value==null && this.type.isPrimitive())
+            {
+                value = this.primitiveDefault;
+            }
+
+            if(value instanceof java.util.Date)
+            {
+                if(this.type==java.sql.Date.class && !(value instanceof java.sql.Date))
+                {
+                    value = new java.sql.Date(((java.util.Date) value).getTime());
+                }
+                else
+                if(this.type==java.sql.Time.class && !(value instanceof java.sql.Time))
+                {
+                    value = new java.sql.Time(((java.util.Date) value).getTime());
+                }
+                else
+                if(this.type==java.sql.Timestamp.class && !(value instanceof java.sql.Timestamp))
+                {
+                    value = new java.sql.Timestamp(((java.util.Date) value).getTime());
+                }
+            }
+            else
+            if(value instanceof String && this.type.isEnum())
+            {
+                value = Enum.valueOf(this.type.asSubclass(Enum.class), (String) value);
+            }
+
+            if(value!=null && !this.boxedType.isInstance(value))
+            {
+                throw new SQLException("Cannot set " + this.name + ": incompatible types, cannot convert "
+                        + value.getClass().getName() + " to " + this.type.getName());
+            }
+
+            try
+            {
+                this.setter.invokeExact(bean, value);
+            }
+            catch(Throwable xe)
+            {
+                throw new SQLException("Cannot set " + this.name + ": " + xe.getMessage(), xe);
+            }
+        }
     }
 
     public <T> Map<String, T> queryForStringBeanMap(String sql, Class<T> beanClazz, Object... args)
@@ -129,7 +585,7 @@ public class JBAO
             throws Exception
     {
         BeanMapHandler<K, V> handler = new BeanMapHandler<K, V>(beanClazz, IBean.class.isAssignableFrom(beanClazz)
-                ? new BasicRowProcessor(IBeanProcessor.of(beanClazz)) : this._dao.generousRowProcessor);
+                ? IBeanProcessor.rowProcessorFor(beanClazz) : this._dao.generousRowProcessor);
 
         return this._dao.queryForT(this._dao.getDbType(), handler, this._dao.getConnection(), this._dao.getQueryRunner(), sql, args);
     }
@@ -138,7 +594,7 @@ public class JBAO
             throws Exception
     {
         BeanMapHandler<K, V> handler = new BeanMapHandler<K, V>(beanClazz, IBean.class.isAssignableFrom(beanClazz)
-                ? new BasicRowProcessor(IBeanProcessor.of(beanClazz)) : this._dao.generousRowProcessor);
+                ? IBeanProcessor.rowProcessorFor(beanClazz) : this._dao.generousRowProcessor);
 
         return this._dao.queryForT(this._dao.getDbType(), handler, this._dao.getConnection(), this._dao.getQueryRunner(), sql);
     }
@@ -147,7 +603,7 @@ public class JBAO
             throws Exception
     {
         ResultSetHandler<List<T>> handler = new BeanListHandler<T>(beanClazz, IBean.class.isAssignableFrom(beanClazz)
-                ? new BasicRowProcessor(IBeanProcessor.of(beanClazz)) : this._dao.generousRowProcessor);
+                ? IBeanProcessor.rowProcessorFor(beanClazz) : this._dao.generousRowProcessor);
 
         return this._dao.queryForT(this._dao.getDbType(), handler, this._dao.getConnection(), this._dao.getQueryRunner(), sql, args);
     }
@@ -156,7 +612,7 @@ public class JBAO
             throws Exception
     {
         ResultSetHandler<List<T>> handler = new BeanListHandler<T>(beanClazz, IBean.class.isAssignableFrom(beanClazz)
-                ? new BasicRowProcessor(IBeanProcessor.of(beanClazz)) : this._dao.generousRowProcessor);
+                ? IBeanProcessor.rowProcessorFor(beanClazz) : this._dao.generousRowProcessor);
 
         return this._dao.queryForT(this._dao.getDbType(), handler, this._dao.getConnection(), this._dao.getQueryRunner(), sql);
     }
@@ -165,7 +621,7 @@ public class JBAO
             throws Exception
     {
         ResultSetHandler<T> handler = new BeanHandler<T>(beanClazz, IBean.class.isAssignableFrom(beanClazz)
-                ? new BasicRowProcessor(IBeanProcessor.of(beanClazz)) : this._dao.generousRowProcessor);
+                ? IBeanProcessor.rowProcessorFor(beanClazz) : this._dao.generousRowProcessor);
 
         return this._dao.queryForT(this._dao.getDbType(), handler, this._dao.getConnection(), this._dao.getQueryRunner(), sql, args);
     }
@@ -175,73 +631,649 @@ public class JBAO
             throws Exception
     {
         ResultSetHandler<T> handler = new BeanHandler<T>(beanClazz, IBean.class.isAssignableFrom(beanClazz)
-                ? new BasicRowProcessor(IBeanProcessor.of(beanClazz)) : this._dao.generousRowProcessor);
+                ? IBeanProcessor.rowProcessorFor(beanClazz) : this._dao.generousRowProcessor);
 
         return this._dao.queryForT(this._dao.getDbType(), handler, this._dao.getConnection(), this._dao.getQueryRunner(), sql);
     }
 
-    public static <T>String extractIdNameFromBean(Class<T> _beanClazz)
+    /**
+     * loads the bean by its @IBeanID values (in field order), served from the IdentityCache of a JdaoQueryRunner if it has one.
+     * <p>
+     * the cache holds a private snapshot, every call gets its own copy. beans without a no-arg constructor
+     * or with final fields cannot be copied and bypass the cache.
+     *
+     */
+    public <T> T findById(String table, Class<T> beanClazz, Object... ids)
+            throws Exception
     {
-        List<Field> fields = FieldUtils.getFieldsListWithAnnotation(_beanClazz, IBeanID.class);
-        if(fields.size()!=1)
+        String[] _idCols = idColumnsOf(beanClazz);
+        if(ids==null || ids.length!=_idCols.length)
         {
-            throw new IllegalArgumentException("improper IBeanID annotation");
+            throw new IllegalArgumentException("expected "+_idCols.length+" id values");
+        }
+
+        IdentityCache _cache = identityCacheOf(this._dao);
+        if(_cache==null || BeanCopier.of(beanClazz)==null)
+        {
+            return this.queryForBean(SqlShapeCache.selectSql(this._dao.getDbType(), table, _idCols), beanClazz, ids);
+        }
+
+        T _bean = _cache.get(beanClazz, table, ids);
+        if(_bean==null)
+        {
+            long _generation = _cache.generation();
+            _bean = this.queryForBean(SqlShapeCache.selectSql(this._dao.getDbType(), table, _idCols), beanClazz, ids);
+            _cache.put(beanClazz, table, ids, _bean, _generation);
         }
-        return fields.iterator().next().getAnnotation(IBeanField.class).value();
+        return _bean;
     }
 
-    public static <T>Map<String,Object> extractIdKvFromBean(Object _bean, Class<T> _beanClazz)
+    /**
+     * returns the identity cache to use or null, reads and writes inside a transaction bypass it.
+     *
+     */
+    static IdentityCache identityCacheOf(JDAO _dao) throws SQLException
     {
-        Map<String,Object> _ret = new HashMap();
-        List<Field> fields = FieldUtils.getFieldsListWithAnnotation(_beanClazz, IBeanID.class);
-        if(fields.size()==0)
+        if(!(_dao.getQueryRunner() instanceof JdaoQueryRunner))
         {
-            throw new IllegalArgumentException("improper IBeanID annotation");
+            return null;
         }
-        try
+        IdentityCache _cache = ((JdaoQueryRunner) _dao.getQueryRunner()).getIdentityCache();
+        if(_cache==null)
+        {
+            return null;
+        }
+        if(_dao.getConnection()!=null && !_dao.getConnection().getAutoCommit())
+        {
+            return null;
+        }
+        return _cache;
+    }
+
+    static <T> String[] idColumnsOf(Class<T> _beanClazz)
+    {
+        IBeanMapper<T> _mapper = mapperFor(_beanClazz);
+        if(_mapper!=null && _mapper.idColumns().length>0)
         {
-            Iterator<Field> it = fields.iterator();
-            while(it.hasNext())
+            return _mapper.idColumns();
+        }
+        BeanDescriptor bd = BeanDescriptor.of(_beanClazz);
+        bd.checkIds();
+        String[] _ret = new String[bd.idColumns.length];
+        for(int i = 0; i < _ret.length; i++)
+        {
+            _ret[i] = bd.idColumns[i].column;
+        }
+        return _ret;
+    }
+
+    /**
+     * bounded per-class cache of beans keyed on table and @IBeanID values.
+     * <p>
+     * every write through the JdaoQueryRunner holding the cache (insertBean, updateBean, updateBeans, plain
+     * sql) drops the beans of the written table. entries also expire after the ttl, which bounds
+     * staleness from writes the runner does not see.
+     *
+     */
+    public static class IdentityCache
+    {
+        public static final int DEFAULT_MAX_ENTRIES = 256;
+        public static final long DEFAULT_TTL_MILLIS = 300000L;
+
+        private final int maxEntries;
+        private final long ttlNanos;
+        private final Map<Class, ClassCache> classCaches = new ConcurrentHashMap<Class, ClassCache>();
+
+        // bumped on every invalidation, a bean loaded across an invalidation is not stored
+        private final AtomicLong generation = new AtomicLong();
+
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+
+        public IdentityCache()
+        {
+            this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * @param maxEntries, maximum number of cached beans per class
+         * @param ttl, time to live of an entry, 0 for no expiry
+         * @param unit, unit of ttl
+         */
+        public IdentityCache(int maxEntries, long ttl, TimeUnit unit)
+        {
+            this.maxEntries = maxEntries<=0 ? DEFAULT_MAX_ENTRIES : maxEntries;
+            this.ttlNanos = unit.toNanos(ttl);
+        }
+
+        public long getHits()
+        {
+            return hits.get();
+        }
+
+        public long getMisses()
+        {
+            return misses.get();
+        }
+
+        public long getEvictions()
+        {
+            return evictions.get();
+        }
+
+        public int size()
+        {
+            int _ret = 0;
+            for(ClassCache _cc : classCaches.values())
             {
-                Field field = it.next();
-                String _key = field.getAnnotation(IBeanField.class).value();
-                Object _val = FieldUtils.readField(field, _bean, true);
-                _ret.put(_key, _val);
+                _ret += _cc.size();
             }
             return _ret;
         }
-        catch(IllegalAccessException e)
+
+        long generation()
         {
-            // IGNORE
+            return generation.get();
+        }
+
+        ClassCache classCache(Class _beanClazz)
+        {
+            ClassCache _cc = classCaches.get(_beanClazz);
+            if(_cc==null)
+            {
+                _cc = new ClassCache();
+                ClassCache _prev = ((ConcurrentHashMap<Class, ClassCache>) classCaches).putIfAbsent(_beanClazz, _cc);
+                if(_prev!=null)
+                {
+                    _cc = _prev;
+                }
+            }
+            return _cc;
+        }
+
+        <T> T get(Class<T> _beanClazz, String table, Object[] ids)
+        {
+            Object _bean = this.classCache(_beanClazz).get(new IdKey(table, ids));
+            if(_bean==null)
+            {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return (T) BeanCopier.of(_beanClazz).copy(_bean);
+        }
+
+        /**
+         * stores a snapshot of the bean unless an invalidation happened since generation was taken.
+         *
+         */
+        void put(Class _beanClazz, String table, Object[] ids, Object _bean, long generation)
+        {
+            if(_bean!=null)
+            {
+                this.classCache(_beanClazz).put(new IdKey(table, ids), BeanCopier.of(_beanClazz).copy(_bean), generation);
+            }
+        }
+
+        /**
+         * drops the bean with the given id values.
+         *
+         */
+        public void invalidate(Class _beanClazz, String table, Object... ids)
+        {
+            generation.incrementAndGet();
+            this.classCache(_beanClazz).remove(new IdKey(table, ids));
+        }
+
+        /**
+         * drops all beans of the given table.
+         *
+         */
+        public void invalidateTable(String table)
+        {
+            generation.incrementAndGet();
+            String _table = ResultCache.normalizeTable(table);
+            for(ClassCache _cc : classCaches.values())
+            {
+                _cc.removeTable(_table);
+            }
+        }
+
+        public void clear()
+        {
+            generation.incrementAndGet();
+            for(ClassCache _cc : classCaches.values())
+            {
+                _cc.clear();
+            }
+        }
+
+        final class ClassCache
+        {
+            final LinkedHashMap<IdKey, CachedBean> beans = new LinkedHashMap<IdKey, CachedBean>(16, 0.75f, true);
+            final ReentrantLock lock = new ReentrantLock();
+
+            Object get(IdKey key)
+            {
+                lock.lock();
+                try
+                {
+                    CachedBean _cb = beans.get(key);
+                    if(_cb==null)
+                    {
+                        return null;
+                    }
+                    if(_cb.expiresAt!=0L && _cb.expiresAt-System.nanoTime()<=0L)
+                    {
+                        beans.remove(key);
+                        return null;
+                    }
+                    return _cb.bean;
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+
+            void put(IdKey key, Object _bean, long _generation)
+            {
+                lock.lock();
+                try
+                {
+                    if(IdentityCache.this.generation.get()!=_generation)
+                    {
+                        return;
+                    }
+                    beans.put(key, new CachedBean(_bean, ttlNanos==0L ? 0L : System.nanoTime()+ttlNanos));
+                    Iterator<IdKey> _it = beans.keySet().iterator();
+                    while(beans.size()>maxEntries && _it.hasNext())
+                    {
+                        _it.next();
+                        _it.remove();
+                        evictions.incrementAndGet();
+                    }
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+
+            void remove(IdKey key)
+            {
+                lock.lock();
+                try
+                {
+                    beans.remove(key);
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+
+            void removeTable(String _table)
+            {
+                lock.lock();
+                try
+                {
+                    Iterator<IdKey> _it = beans.keySet().iterator();
+                    while(_it.hasNext())
+                    {
+                        if(_it.next().table.equals(_table))
+                        {
+                            _it.remove();
+                        }
+                    }
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+
+            void clear()
+            {
+                lock.lock();
+                try
+                {
+                    beans.clear();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+
+            int size()
+            {
+                lock.lock();
+                try
+                {
+                    return beans.size();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
         }
-        return null;
     }
 
-    public static <T>Map<String,Object> extractColsFromBean(Object _bean, Class<T> _beanClazz, boolean _inclIdField)
+    static final class IdKey
+    {
+        final String table;
+        final List<Object> ids;
+
+        IdKey(String table, Object[] ids)
+        {
+            this.table = ResultCache.normalizeTable(table);
+            this.ids = Arrays.asList(ids.clone());
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.table.hashCode()*31+this.ids.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return (o instanceof IdKey) && ((IdKey) o).table.equals(this.table) && ((IdKey) o).ids.equals(this.ids);
+        }
+    }
+
+    /**
+     * copies the instance fields of a bean into a new instance, dates and arrays are cloned, other values are shared.
+     *
+     */
+    static final class BeanCopier
     {
-        Map<String,Object> _ret = new HashMap();
-        List<Field> fields = FieldUtils.getFieldsListWithAnnotation(_beanClazz, IBeanField.class);
-        for(Field field : fields)
+        static final Object NOT_COPYABLE = new Object();
+        static final Map<Class, Object> copierCache = new ConcurrentHashMap<Class, Object>();
+
+        final MethodHandle constructor;
+        final MethodHandle[] getters;
+        final MethodHandle[] setters;
+
+        BeanCopier(MethodHandle constructor, MethodHandle[] getters, MethodHandle[] setters)
+        {
+            this.constructor = constructor;
+            this.getters = getters;
+            this.setters = setters;
+        }
+
+        /**
+         * returns the copier for the class, or null if it has no no-arg constructor or final fields.
+         *
+         */
+        static BeanCopier of(Class _clazz)
+        {
+            Object _copier = copierCache.get(_clazz);
+            if(_copier==null)
+            {
+                _copier = build(_clazz);
+                copierCache.put(_clazz, _copier);
+            }
+            return _copier==NOT_COPYABLE ? null : (BeanCopier) _copier;
+        }
+
+        static Object build(Class _clazz)
         {
             try
             {
-                if(_inclIdField || (!field.isAnnotationPresent(IBeanID.class)))
+                MethodHandles.Lookup _lookup = MethodHandles.lookup();
+                Constructor _ctor = _clazz.getDeclaredConstructor();
+                _ctor.setAccessible(true);
+                List<MethodHandle> _getters = new ArrayList<MethodHandle>();
+                List<MethodHandle> _setters = new ArrayList<MethodHandle>();
+                for(Class _c = _clazz; _c!=null && _c!=Object.class; _c = _c.getSuperclass())
                 {
-                    String _key = field.getAnnotation(IBeanField.class).value();
-                    Object _val = FieldUtils.readField(field, _bean, true);
-
-                    if(field.isAnnotationPresent(IBeanFieldType.class) && "string".equalsIgnoreCase(field.getAnnotation(IBeanFieldType.class).value()))
+                    for(Field _field : _c.getDeclaredFields())
                     {
-                        _val = _val.toString();
+                        int _mod = _field.getModifiers();
+                        if(java.lang.reflect.Modifier.isStatic(_mod))
+                        {
+                            continue;
+                        }
+                        if(java.lang.reflect.Modifier.isFinal(_mod))
+                        {
+                            return NOT_COPYABLE;
+                        }
+                        _field.setAccessible(true);
+                        _getters.add(_lookup.unreflectGetter(_field).asType(MethodType.methodType(Object.class, Object.class)));
+                        _setters.add(_lookup.unreflectSetter(_field).asType(MethodType.methodType(void.class, Object.class, Object.class)));
+                    }
+                }
+                return new BeanCopier(_lookup.unreflectConstructor(_ctor).asType(MethodType.methodType(Object.class)),
+                        _getters.toArray(new MethodHandle[0]), _setters.toArray(new MethodHandle[0]));
+            }
+            catch(Exception xe)
+            {
+                JDAO.LOG.debug("cannot copy "+_clazz.getName(), xe);
+                return NOT_COPYABLE;
+            }
+        }
 
+        Object copy(Object _bean)
+        {
+            try
+            {
+                Object _ret = this.constructor.invokeExact();
+                for(int i = 0; i < this.getters.length; i++)
+                {
+                    Object _val = this.getters[i].invokeExact(_bean);
+                    if(_val instanceof Date)
+                    {
+                        _val = ((Date) _val).clone();
                     }
+                    else
+                    if(_val!=null && _val.getClass().isArray())
+                    {
+                        int _len = Array.getLength(_val);
+                        Object _arr = Array.newInstance(_val.getClass().getComponentType(), _len);
+                        System.arraycopy(_val, 0, _arr, 0, _len);
+                        _val = _arr;
+                    }
+                    this.setters[i].invokeExact(_ret, _val);
+                }
+                return _ret;
+            }
+            catch(Throwable xe)
+            {
+                throw new IllegalStateException("cannot copy "+_bean.getClass().getName(), xe);
+            }
+        }
+    }
+
+    static final class CachedBean
+    {
+        final Object bean;
+        final long expiresAt;
+
+        CachedBean(Object bean, long expiresAt)
+        {
+            this.bean = bean;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * cached per-class view of the @IBeanField/@IBeanID fields with method handle getters.
+     *
+     */
+    static final class BeanDescriptor
+    {
+        static final Map<Class, BeanDescriptor> descriptorCache = new ConcurrentHashMap<Class, BeanDescriptor>();
+
+        final BeanColumn[] columns;
+        final BeanColumn[] idColumns;
+        final int idFieldCount;
+
+        BeanDescriptor(BeanColumn[] columns, BeanColumn[] idColumns, int idFieldCount)
+        {
+            this.columns = columns;
+            this.idColumns = idColumns;
+            this.idFieldCount = idFieldCount;
+        }
+
+        static BeanDescriptor of(Class _beanClazz)
+        {
+            BeanDescriptor bd = descriptorCache.get(_beanClazz);
+            if(bd==null)
+            {
+                bd = build(_beanClazz);
+                descriptorCache.put(_beanClazz, bd);
+            }
+            return bd;
+        }
+
+        static BeanDescriptor build(Class _beanClazz)
+        {
+            List<BeanColumn> _cols = new ArrayList<BeanColumn>();
+            for(Field field : FieldUtils.getFieldsListWithAnnotation(_beanClazz, IBeanField.class))
+            {
+                _cols.add(BeanColumn.of(field));
+            }
 
-                    _ret.put(_key, _val);
+            List<BeanColumn> _ids = new ArrayList<BeanColumn>();
+            List<Field> _idFields = FieldUtils.getFieldsListWithAnnotation(_beanClazz, IBeanID.class);
+            for(Field field : _idFields)
+            {
+                if(field.isAnnotationPresent(IBeanField.class))
+                {
+                    _ids.add(BeanColumn.of(field));
                 }
             }
-            catch(IllegalAccessException e)
+            return new BeanDescriptor(_cols.toArray(new BeanColumn[0]), _ids.toArray(new BeanColumn[0]), _idFields.size());
+        }
+
+        void checkIds()
+        {
+            if(this.idFieldCount==0 || this.idFieldCount!=this.idColumns.length)
+            {
+                throw new IllegalArgumentException("improper IBeanID annotation");
+            }
+        }
+    }
+
+    static final class BeanColumn
+    {
+        final String column;
+        final boolean id;
+        final boolean asString;
+        final MethodHandle getter;
+
+        BeanColumn(String column, boolean id, boolean asString, MethodHandle getter)
+        {
+            this.column = column;
+            this.id = id;
+            this.asString = asString;
+            this.getter = getter;
+        }
+
+        static BeanColumn of(Field field)
+        {
+            try
+            {
+                field.setAccessible(true);
+                MethodHandle mh = MethodHandles.lookup().unreflectGetter(field)
+                        .asType(MethodType.methodType(Object.class, Object.class));
+                return new BeanColumn(field.getAnnotation(IBeanField.class).value(),
+                        field.isAnnotationPresent(IBeanID.class),
+                        field.isAnnotationPresent(IBeanFieldType.class) && "string".equalsIgnoreCase(field.getAnnotation(IBeanFieldType.class).value()),
+                        mh);
+            }
+            catch(IllegalAccessException xe)
+            {
+                throw new IllegalArgumentException("cannot access field "+field.getName(), xe);
+            }
+        }
+
+        Object read(Object _bean)
+        {
+            Object _val;
+            try
+            {
+                _val = this.getter.invokeExact(_bean);
+            }
+            catch(Throwable xe)
             {
-                // IGNORE
+                throw new IllegalStateException("cannot read field for "+this.column, xe);
+            }
+            if(this.asString && _val!=null)
+            {
+                _val = _val.toString();
+            }
+            return _val;
+        }
+    }
+
+    public static <T>String extractIdNameFromBean(Class<T> _beanClazz)
+    {
+        IBeanMapper<T> _mapper = mapperFor(_beanClazz);
+        if(_mapper!=null && _mapper.idColumns().length==1)
+        {
+            return _mapper.idColumns()[0];
+        }
+        BeanDescriptor bd = BeanDescriptor.of(_beanClazz);
+        if(bd.idFieldCount!=1 || bd.idColumns.length!=1)
+        {
+            throw new IllegalArgumentException("improper IBeanID annotation");
+        }
+        return bd.idColumns[0].column;
+    }
+
+    public static <T>Map<String,Object> extractIdKvFromBean(Object _bean, Class<T> _beanClazz)
+    {
+        IBeanMapper<T> _mapper = mapperFor(_beanClazz);
+        if(_mapper!=null && _mapper.idColumns().length>0)
+        {
+            return _mapper.extractIdKv((T) _bean);
+        }
+        BeanDescriptor bd = BeanDescriptor.of(_beanClazz);
+        bd.checkIds();
+        Map<String,Object> _ret = new LinkedHashMap();
+        for(BeanColumn _col : bd.idColumns)
+        {
+            _ret.put(_col.column, readRaw(_col, _bean));
+        }
+        return _ret;
+    }
+
+    static Object readRaw(BeanColumn _col, Object _bean)
+    {
+        try
+        {
+            return _col.getter.invokeExact(_bean);
+        }
+        catch(Throwable xe)
+        {
+            throw new IllegalStateException("cannot read field for "+_col.column, xe);
+        }
+    }
+
+    /**
+     * returns the column values of the bean in field order.
+     *
+     */
+    public static <T>Map<String,Object> extractColsFromBean(Object _bean, Class<T> _beanClazz, boolean _inclIdField)
+    {
+        IBeanMapper<T> _mapper = mapperFor(_beanClazz);
+        if(_mapper!=null)
+        {
+            return _mapper.extractCols((T) _bean, _inclIdField);
+        }
+        BeanDescriptor bd = BeanDescriptor.of(_beanClazz);
+        Map<String,Object> _ret = new LinkedHashMap();
+        for(BeanColumn _col : bd.columns)
+        {
+            if(_inclIdField || !_col.id)
+            {
+                _ret.put(_col.column, _col.read(_bean));
             }
         }
         return _ret;
@@ -249,7 +1281,7 @@ public class JBAO
 
     public static <T> List<Map<String,Object>> extractColsFromBeanList(List<Object> _beans, Class<T> _beanClazz, boolean _inclIdField)
     {
-        List<Map<String,Object>> _ret = new Vector();
+        List<Map<String,Object>> _ret = new ArrayList();
         for(Object b : _beans)
         {
             _ret.add(extractColsFromBean((T)b, _beanClazz, _inclIdField));
@@ -277,27 +1309,66 @@ public class JBAO
         Map<String,Object> keyCol = extractIdKvFromBean(_bean, _beanClazz);
         Map cols = extractColsFromBean(_bean, _beanClazz, false);
 
-        Vector vv = new Vector();
-        String setqq = JdaoUtils.buildSet(this._dao.getDbType(), vv, cols);
-        String wqq = JdaoUtils.buildWhereEqual(this._dao.getDbType(), vv, keyCol);
+        SqlShapeCache.BoundSql bound = SqlShapeCache.bindUpdate(this._dao.getDbType(), table, cols, keyCol);
 
-        StringBuilder qq=new StringBuilder();
-
-        qq.append("UPDATE "+table+" SET ");
-        qq.append(setqq);
-        qq.append(" WHERE ");
-        qq.append(wqq);
-
-        return this._dao.update(qq.toString(), vv.toArray());
+        return this._dao.update(bound.getSql(), bound.getArgs());
     }
 
     public <T>int updateBeans(String table, List<Object> _beans, Class<T> _beanClazz)
             throws Exception
     {
+        return updateBeans(table, _beans, _beanClazz, JDAO.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * updates the beans using jdbc batches of _batchSize, beans with the same shape share one prepared update.
+     * returns the number of rows updated, a batch entry reported as SUCCESS_NO_INFO counts as one row.
+     *
+     */
+    public <T>int updateBeans(String table, List<Object> _beans, Class<T> _beanClazz, int _batchSize)
+            throws Exception
+    {
+        this.checkReadOnly();
+        if(_batchSize<=0)
+        {
+            _batchSize = JDAO.DEFAULT_BATCH_SIZE;
+        }
+
         int _ret = 0;
-        for(Object _bean : _beans)
+        Connection _conn = JDAO.openConnection(this._dao.getConnection(), this._dao.getQueryRunner());
+        Map<String, JDAO.StatementBatch> _batches = new LinkedHashMap();
+        try
         {
-            _ret += updateBean(table, _bean, _beanClazz);
+            int _idx = 0;
+            for(Object _bean : _beans)
+            {
+                Map<String,Object> keyCol = extractIdKvFromBean(_bean, _beanClazz);
+                Map cols = extractColsFromBean(_bean, _beanClazz, false);
+                SqlShapeCache.BoundSql bound = SqlShapeCache.bindUpdate(this._dao.getDbType(), table, cols, keyCol);
+
+                JDAO.StatementBatch _batch = _batches.get(bound.getSql());
+                if(_batch==null)
+                {
+                    _batch = new JDAO.StatementBatch(_conn.prepareStatement(bound.getSql()), _batchSize);
+                    _batches.put(bound.getSql(), _batch);
+                }
+                JDAO.fillStatement(this._dao.getQueryRunner(), _batch.stmt, bound.getSql(), bound.getArgs());
+                _ret += _batch.add(_idx++, null);
+            }
+
+            for(JDAO.StatementBatch _batch : _batches.values())
+            {
+                _ret += _batch.flush(null);
+            }
+        }
+        finally
+        {
+            for(JDAO.StatementBatch _batch : _batches.values())
+            {
+                DbUtils.closeQuietly(_batch.stmt);
+            }
+            JDAO.releaseConnection(this._dao.getConnection(), _conn);
+            JDAO.invalidateCaches(this._dao.getQueryRunner(), this._dao.getConnection(), table);
         }
         return _ret;
     }
@@ -21,10 +21,15 @@ import org.apache.commons.dbutils.handlers.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.reactivestreams.Publisher;
+
 import javax.sql.DataSource;
 import java.io.*;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 public class JDAO implements Closeable
 {
@@ -83,13 +88,14 @@ public class JDAO implements Closeable
 	static GenerousBeanProcessor generousBeanProcessor = new GenerousBeanProcessor();
 	static BasicRowProcessor generousRowProcessor = new BasicRowProcessor(generousBeanProcessor);
 	static BasicXRowProcessor basicxRowProcessor  = new BasicXRowProcessor();
-	static MapListHandler mapListHandler = new MapListHandler(basicxRowProcessor);
+	static RowMapListHandler mapListHandler = new RowMapListHandler();
 	static MapHandler mapHandler = new MapHandler(basicxRowProcessor);
 	static ScalarHandler<Object> scalarHandler = new ScalarHandler<Object>();
 	static ArrayListHandler arrayListHandler = new ArrayListHandler();
 	static ColumnListHandler<Object> columnListHandler = new ColumnListHandler<Object>();
 	static KvMapHandler kvMapHandler = new KvMapHandler();
 	static KvListMapHandler kvListMapHandler = new KvListMapHandler();
+	static ColumnarResult.ColumnarHandler columnarHandler = new ColumnarResult.ColumnarHandler();
 	
 	public static JDAO createDaoFromDataSource(DataSource ds, boolean pmt)
 			throws Exception
@@ -103,12 +109,28 @@ public class JDAO implements Closeable
 		return new JDAO(conn, new QueryRunner(pmt));
 	}
 	
+	/**
+	 * creates a dao on the given connection that caches up to statementCacheSize prepared statements.
+	 *
+	 */
+	public static JDAO createDaoFromConnection(Connection conn, boolean pmt, int statementCacheSize)
+			throws Exception
+	{
+		return new JDAO(conn, new JdaoQueryRunner(pmt, statementCacheSize));
+	}
+	
 	public static JDAO createDaoFromJndi(String jndiUri, boolean pmt)
 			throws Exception
 	{
 		return new JDAO(JndiUtils.lookupDataSourceFromJndi(jndiUri).getConnection(), new QueryRunner(pmt));
 	}
 	
+	public static JDAO createDaoFromJndi(String jndiUri, boolean pmt, int statementCacheSize)
+			throws Exception
+	{
+		return new JDAO(JndiUtils.lookupDataSourceFromJndi(jndiUri).getConnection(), new JdaoQueryRunner(pmt, statementCacheSize));
+	}
+	
 	/**
 	 * queries connection according to give dbType and returns data as given by resultsethandler
 	 *
@@ -119,12 +141,38 @@ public class JDAO implements Closeable
 	 * @param  sql, sql query
 	 * @param  args, sql parameters
 	 * @return object of type T or null
+	 * <p>
+	 * results of the JDAO handlers are served from the ResultCache of a JdaoQueryRunner, if it has one.
 	 */
 	
 	public static <T> T
 	queryForT(int dbType, ResultSetHandler<T> rsHandler, Connection conn, QueryRunner ds, String sql, Object... args)
 			throws Exception
 	{
+		ResultCache cache = JDAO.resultCacheFor(rsHandler, conn, ds);
+		if(cache!=null)
+		{
+			SqlShapeCache.BoundSql bound = JDAO.bindArgs(sql, args);
+			ResultCache.Key key = ResultCache.keyFor(dbType, bound.getSql(), bound.getArgs(), rsHandler);
+			Object hit = cache.get(key);
+			if(hit!=null)
+			{
+				return (T) hit;
+			}
+			long generation = cache.generation();
+			T ret;
+			if(conn==null)
+			{
+				ret = ds.query(bound.getSql(), rsHandler, bound.getArgs());
+			}
+			else
+			{
+				ret = ds.query(conn, bound.getSql(), rsHandler, bound.getArgs());
+			}
+			cache.put(key, ret, generation);
+			return ret;
+		}
+		
 		if(args == null)
 		{
 			if(conn==null)
@@ -139,15 +187,15 @@ public class JDAO implements Closeable
 		else
 		if(args.length == 1 && args[0] instanceof Map)
 		{
-			List nArgs = new Vector();
-			sql = JdaoUtils.preparseParameters(dbType, sql, nArgs, (Map) args[0]);
+			JdaoUtils.NamedParameterTemplate template = JdaoUtils.compileParameters(sql);
+			Object[] nArgs = template.bind((Map) args[0]);
 			if(conn==null)
 			{
-				return ds.query(sql, rsHandler, nArgs.toArray());
+				return ds.query(template.getSql(), rsHandler, nArgs);
 			}
 			else
 			{
-				return ds.query(conn, sql, rsHandler, nArgs.toArray());
+				return ds.query(conn, template.getSql(), rsHandler, nArgs);
 			}
 		}
 		else
@@ -175,6 +223,213 @@ public class JDAO implements Closeable
 		}
 	}
 	
+	/**
+	 * returns the result cache to use for the query or null.
+	 * <p>
+	 * only the stateless JDAO handlers are cached, never reads inside a transaction.
+	 *
+	 */
+	static ResultCache resultCacheFor(ResultSetHandler<?> rsHandler, Connection conn, QueryRunner ds) throws SQLException
+	{
+		if(!(ds instanceof JdaoQueryRunner))
+		{
+			return null;
+		}
+		ResultCache cache = ((JdaoQueryRunner) ds).getResultCache();
+		if(cache==null || !JDAO.isCacheable(rsHandler))
+		{
+			return null;
+		}
+		if(conn!=null && !conn.getAutoCommit())
+		{
+			return null;
+		}
+		return cache;
+	}
+	
+	static boolean isCacheable(ResultSetHandler<?> rsHandler)
+	{
+		return rsHandler==mapListHandler
+				|| rsHandler==mapHandler
+				|| rsHandler==scalarHandler
+				|| rsHandler==arrayListHandler
+				|| rsHandler==columnListHandler
+				|| rsHandler==kvMapHandler
+				|| rsHandler==kvListMapHandler;
+	}
+	
+	/**
+	 * drops cached results and beans of table, for writes not going through the query runner.
+	 *
+	 */
+	static void invalidateCaches(QueryRunner ds, Connection conn, String table)
+	{
+		if(ds instanceof JdaoQueryRunner)
+		{
+			((JdaoQueryRunner) ds).invalidateTable(conn, table);
+		}
+	}
+	
+	/**
+	 * invalidates the caches again for the tables written in the transaction just committed on conn.
+	 *
+	 */
+	static void afterCommit(QueryRunner ds, Connection conn)
+	{
+		if(ds instanceof JdaoQueryRunner)
+		{
+			((JdaoQueryRunner) ds).afterCommit(conn);
+		}
+	}
+	
+	static void afterRollback(QueryRunner ds, Connection conn)
+	{
+		if(ds instanceof JdaoQueryRunner)
+		{
+			((JdaoQueryRunner) ds).afterRollback(conn);
+		}
+	}
+	
+	/**
+	 * fills a statement prepared outside the query runner, typed if the runner binds typed parameters.
+	 *
+	 */
+	static void fillStatement(QueryRunner ds, PreparedStatement stmt, String sql, Object... args) throws SQLException
+	{
+		if(ds instanceof JdaoQueryRunner)
+		{
+			((JdaoQueryRunner) ds).fillStatement(stmt, sql, args);
+			return;
+		}
+		ds.fillStatement(stmt, args);
+	}
+	
+	/**
+	 * resolves sql and arguments the same way as queryForT (named parameters, collection or varargs).
+	 *
+	 */
+	static SqlShapeCache.BoundSql bindArgs(String sql, Object... args)
+	{
+		if(args == null)
+		{
+			return new SqlShapeCache.BoundSql(sql, null);
+		}
+		else
+		if(args.length == 1 && args[0] instanceof Map)
+		{
+			JdaoUtils.NamedParameterTemplate template = JdaoUtils.compileParameters(sql);
+			return new SqlShapeCache.BoundSql(template.getSql(), template.bind((Map) args[0]));
+		}
+		else
+		if(args.length > 0 && args[0] instanceof Collection)
+		{
+			return new SqlShapeCache.BoundSql(sql, ((Collection)args[0]).toArray());
+		}
+		return new SqlShapeCache.BoundSql(sql, args);
+	}
+	
+	public static final int DEFAULT_FETCH_SIZE = 1000;
+	
+	/**
+	 * executes a query and returns a lazy cursor of rows (Map), the cursor must be closed if not exhausted.
+	 * <p>
+	 * if the only (first) argument is a map, the sql string is expected to have "?{field-name}" named parameters
+	 * <p>
+	 * if the only (first) argument is a list (collection), it is take as the list of arguments.
+	 *
+	 */
+	public static ResultCursor<Map<String,Object>>
+	queryForIterator(int dbType, Connection conn, QueryRunner ds, int fetchSize, String sql, Object... args)
+			throws Exception
+	{
+		return queryForIterator(dbType, conn, ds, fetchSize, new ResultCursor.RowMapper<Map<String,Object>>()
+		{
+			ResultRow.ColumnIndex columnIndex = null;
+			
+			@Override
+			public Map<String,Object> mapRow(ResultSet rs) throws SQLException
+			{
+				if(this.columnIndex==null)
+				{
+					this.columnIndex = ResultRow.ColumnIndex.of(rs);
+				}
+				return ResultRow.of(this.columnIndex, rs);
+			}
+		}, sql, args);
+	}
+	
+	public static <T> ResultCursor<T>
+	queryForIterator(int dbType, Connection conn, QueryRunner ds, int fetchSize, ResultCursor.RowMapper<T> rowMapper, String sql, Object... args)
+			throws Exception
+	{
+		SqlShapeCache.BoundSql bound = JDAO.bindArgs(sql, args);
+		return ResultCursor.open(dbType, conn, ds, fetchSize, rowMapper, bound.getSql(), bound.getArgs());
+	}
+	
+	/**
+	 * executes a query and returns a lazy stream of rows (Map), the stream must be closed if not fully consumed.
+	 *
+	 */
+	public static Stream<Map<String,Object>>
+	queryForStream(int dbType, Connection conn, QueryRunner ds, int fetchSize, String sql, Object... args)
+			throws Exception
+	{
+		return queryForIterator(dbType, conn, ds, fetchSize, sql, args).stream();
+	}
+	
+	/**
+	 * returns a cold publisher of rows (Map), each subscription runs the query and fetches rows on demand.
+	 *
+	 */
+	public static Publisher<Map<String,Object>>
+	queryForPublisher(final int dbType, final Connection conn, final QueryRunner ds, final int fetchSize, final String sql, final Object... args)
+	{
+		return ResultPublisher.of(new ResultPublisher.CursorSource<Map<String,Object>>()
+		{
+			@Override
+			public ResultCursor<Map<String,Object>> open() throws Exception
+			{
+				return queryForIterator(dbType, conn, ds, fetchSize, sql, args);
+			}
+		});
+	}
+	
+	public static <T> Publisher<T>
+	queryForPublisher(final int dbType, final Connection conn, final QueryRunner ds, final int fetchSize, final ResultCursor.RowMapper<T> rowMapper, final String sql, final Object... args)
+	{
+		return ResultPublisher.of(new ResultPublisher.CursorSource<T>()
+		{
+			@Override
+			public ResultCursor<T> open() throws Exception
+			{
+				return queryForIterator(dbType, conn, ds, fetchSize, rowMapper, sql, args);
+			}
+		});
+	}
+	
+	/**
+	 * queries in large-result mode and returns data as given by resultsethandler.
+	 * <p>
+	 * the statement uses a server-side cursor configured for the dbType (fetch size, autocommit),
+	 * so the handler sees rows as they are fetched. the connection state is restored afterwards.
+	 *
+	 */
+	public static <T> T
+	queryLargeResultForT(int dbType, ResultSetHandler<T> rsHandler, Connection conn, QueryRunner ds, int fetchSize, String sql, Object... args)
+			throws Exception
+	{
+		SqlShapeCache.BoundSql bound = JDAO.bindArgs(sql, args);
+		ResultCursor<Object> cursor = ResultCursor.open(dbType, conn, ds, fetchSize, null, bound.getSql(), bound.getArgs());
+		try
+		{
+			return rsHandler.handle(cursor.getResultSet());
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+	
 	public static String join(Collection c, final char separator)
 	{
 		if (c == null)
@@ -203,11 +458,138 @@ public class JDAO implements Closeable
 	queryTemplateForT(int dbType, ResultSetHandler<T> rsHandler, Connection conn, QueryRunner ds, String table, Collection cols, Map<String,Object> vm, String suffixQuery, int templateType, int constraintType)
 			throws Exception
 	{
-		List param = new Vector();
+		JDAO.checkTemplateColumns(dbType, conn, ds, table, vm);
+		List param = new ArrayList();
 		String colString = ((cols == null) ? "*" : JDAO.join(cols, ','));
 		return JDAO.queryForT(dbType, rsHandler, conn, ds,  "SELECT "+colString+" FROM "+table+" WHERE "+JdaoUtils.buildWhere(dbType, templateType, constraintType, param, vm)+(suffixQuery==null?"":" "+suffixQuery), param);
 	}
 	
+	/**
+	 * queries by template with parameters for the suffix query, the template condition is parenthesized
+	 * so that a suffix like "AND (...)" applies to the whole template.
+	 *
+	 */
+	public static <T> T
+	queryTemplateForT(int dbType, ResultSetHandler<T> rsHandler, Connection conn, QueryRunner ds, String table, Collection cols, Map<String,Object> vm, String suffixQuery, Collection suffixArgs, int templateType, int constraintType)
+			throws Exception
+	{
+		JDAO.checkTemplateColumns(dbType, conn, ds, table, vm);
+		List param = new ArrayList();
+		String colString = ((cols == null) ? "*" : JDAO.join(cols, ','));
+		String where = JdaoUtils.buildWhere(dbType, templateType, constraintType, param, vm);
+		if(suffixArgs!=null)
+		{
+			param.addAll(suffixArgs);
+		}
+		return JDAO.queryForT(dbType, rsHandler, conn, ds,  "SELECT "+colString+" FROM "+table+" WHERE ("+where+")"+(suffixQuery==null?"":" "+suffixQuery), param);
+	}
+	
+	public static final int DEFAULT_SCAN_PARALLELISM = 4;
+	
+	/**
+	 * scans a table in parallel by splitting the MIN/MAX range of a numeric or date key column into partitions.
+	 * <p>
+	 * every partition runs as a template query (the template vm applies to each) on its own connection
+	 * borrowed from the query runners datasource, rows are passed to the sink from several threads at once,
+	 * so the sink must be thread-safe. rows with a NULL key are read by the first partition.
+	 *
+	 * @return the non-null sink results, in partition order
+	 */
+	public static <T> List<T>
+	queryParallelScan(final int dbType, final QueryRunner ds, final String table, final Collection cols, final Map<String,Object> vm, final String keyColumn, int parallelism, final ResultRowCallbackHandler<T> sink)
+			throws Exception
+	{
+		if(ds.getDataSource()==null)
+		{
+			throw new IllegalArgumentException("parallel scan needs a query runner with datasource");
+		}
+		if(parallelism<=0)
+		{
+			parallelism = DEFAULT_SCAN_PARALLELISM;
+		}
+		
+		Object[] range = JDAO.queryTemplateForT(dbType, new ArrayHandler(), null, ds, table,
+				Arrays.asList("MIN("+keyColumn+")", "MAX("+keyColumn+")"), vm, null, null, JdaoUtils.TEMPLATE_TYPE_AUTO, JdaoUtils.CONSTRAINT_ALL_OF);
+		
+		final List<Object[]> bounds = JdaoUtils.partitionRange(range==null ? null : range[0], range==null ? null : range[1], parallelism);
+		if(bounds.isEmpty())
+		{
+			// empty table or only NULL keys
+			return JDAO.queryTemplateForT(dbType, new ResultCallbackHandler<T>(sink), null, ds, table, cols, vm, null, null, JdaoUtils.TEMPLATE_TYPE_AUTO, JdaoUtils.CONSTRAINT_ALL_OF);
+		}
+		
+		ExecutorService executor = JdaoExecutors.newTaskExecutor("jdao-scan", bounds.size());
+		List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>();
+		try
+		{
+			for(int i = 0; i < bounds.size(); i++)
+			{
+				// first and last partition are open-ended, so rounded bounds never skip rows
+				Object[] bound = bounds.get(i);
+				boolean first = (i == 0);
+				boolean last = (i == bounds.size()-1);
+				final String suffix;
+				final List<Object> args = new ArrayList<Object>();
+				if(first && last)
+				{
+					suffix = null;
+				}
+				else
+				if(first)
+				{
+					suffix = "AND ("+keyColumn+" < ? OR "+keyColumn+" IS NULL)";
+					args.add(bound[1]);
+				}
+				else
+				if(last)
+				{
+					suffix = "AND ("+keyColumn+" >= ?)";
+					args.add(bound[0]);
+				}
+				else
+				{
+					suffix = "AND ("+keyColumn+" >= ? AND "+keyColumn+" < ?)";
+					args.add(bound[0]);
+					args.add(bound[1]);
+				}
+				futures.add(executor.submit(new Callable<List<T>>()
+				{
+					@Override
+					public List<T> call() throws Exception
+					{
+						return JDAO.queryTemplateForT(dbType, new ResultCallbackHandler<T>(sink), null, ds, table, cols, vm, suffix, args, JdaoUtils.TEMPLATE_TYPE_AUTO, JdaoUtils.CONSTRAINT_ALL_OF);
+					}
+				}));
+			}
+			
+			List<T> ret = new ArrayList<T>();
+			for(Future<List<T>> future : futures)
+			{
+				try
+				{
+					ret.addAll(future.get());
+				}
+				catch(ExecutionException xe)
+				{
+					for(Future<List<T>> f : futures)
+					{
+						f.cancel(true);
+					}
+					if(xe.getCause() instanceof Exception)
+					{
+						throw (Exception) xe.getCause();
+					}
+					throw xe;
+				}
+			}
+			return ret;
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+	
 	public static <T> T
 	queryTemplateForT(int dbType, ResultSetHandler<T> rsHandler, Connection conn, QueryRunner ds, String table, Collection cols, Map<String,Object> vm, String suffixQuery)
 			throws Exception
@@ -293,6 +675,26 @@ public class JDAO implements Closeable
 		return queryTemplateForT(dbType, mapListHandler, conn, ds, table, vm);
 	}
 	
+	/**
+	 * queries and returns a column-oriented result (primitive arrays for numeric columns).
+	 *
+	 */
+	public static ColumnarResult queryForColumns(int dbType, Connection conn, QueryRunner ds, String sql, Object... args)
+			throws Exception
+	{
+		return queryForT(dbType, columnarHandler, conn, ds, sql, args);
+	}
+	
+	/**
+	 * queries in large-result mode and returns a column-oriented result.
+	 *
+	 */
+	public static ColumnarResult queryForColumns(int dbType, Connection conn, QueryRunner ds, int fetchSize, String sql, Object... args)
+			throws Exception
+	{
+		return queryLargeResultForT(dbType, columnarHandler, conn, ds, fetchSize, sql, args);
+	}
+	
 	/**
 	 * executes a query and returns a list of arrays (Object[])
 	 * <p>
@@ -521,15 +923,15 @@ public class JDAO implements Closeable
 		else
 		if(args.length >0 && args[0] instanceof Map)
 		{
-			List nArgs = new Vector();
-			sql = JdaoUtils.preparseParameters(dbType, sql, nArgs, (Map) args[0]);
+			JdaoUtils.NamedParameterTemplate template = JdaoUtils.compileParameters(sql);
+			Object[] nArgs = template.bind((Map) args[0]);
 			if(conn==null)
 			{
-				return ds.update(sql, nArgs.toArray());
+				return ds.update(template.getSql(), nArgs);
 			}
 			else
 			{
-				return ds.update(conn, sql, nArgs.toArray());
+				return ds.update(conn, template.getSql(), nArgs);
 			}
 		}
 		else
@@ -596,89 +998,17 @@ public class JDAO implements Closeable
 	public static int insert(int dbType, Connection conn, QueryRunner ds, String table, Map cols, boolean onDuplicateKeyUpdate, Collection updateFields)
 			throws Exception
 	{
-		Vector parm = new Vector();
-
-		StringBuilder qq=new StringBuilder();
-		qq.append("INSERT INTO "+table+" ( ");
-
-		boolean op = true;
-		for(Object kv : cols.entrySet())
-		{
-			Object _val = ((Map.Entry) kv).getValue();
-			parm.add(_val);
-			if(!op)
-			{
-				qq.append(",");
-			}
-			qq.append(((Map.Entry)kv).getKey());
-			op=false;
-		}
-		qq.append(" ) VALUES (");
-
-		op = true;
-		for(Object v : parm)
-		{
-			if(!op)
-			{
-				qq.append(",");
-			}
-			qq.append("?");
-			op=false;
-		}
-		qq.append(" ) ");
-
 		if(onDuplicateKeyUpdate)
 		{
-			switch(dbType)
-			{
-				case JDAO.DB_TYPE_POSTGRES:
-				case JDAO.DB_TYPE_SQLITE:
-				{
-					qq.append(" ON CONFLICT ( ");
-					boolean ff = true;
-					for(Object k : cols.keySet())
-					{
-						if(!updateFields.contains(k))
-						{
-							if(!ff) qq.append(",");
-							qq.append(k.toString());
-							ff=false;
-						}
-					}
-					qq.append(" ) ");
-					Map um =new HashMap();
-					for(Object o : updateFields)
-					{
-						um.put(o, cols.get(o));
-					}
-					String setuqq = JdaoUtils.buildSet(dbType, parm, um);
-					qq.append(" DO UPDATE SET ");
-					qq.append(setuqq);
-					break;
-				}
-				case JDAO.DB_TYPE_MYSQL:
-				case JDAO.DB_TYPE_CRATE:
-				{
-					Map um =new HashMap();
-					for(Object o : updateFields)
-					{
-						um.put(o, cols.get(o));
-					}
-					String setuqq = JdaoUtils.buildSet(dbType, parm, um);
-					qq.append(" ON DUPLICATE KEY UPDATE ");
-					qq.append(setuqq);
-					break;
-				}
-				default:
-					throw new IllegalArgumentException("DB TYPE NOT UPSERT-ABLE");
-			}
+			updateFields = JDAO.withoutKeys(updateFields, JDAO.cachedPrimaryKeyOf(dbType, conn, ds, table));
 		}
+		SqlShapeCache.BoundSql bound = SqlShapeCache.bindInsert(dbType, table, cols, onDuplicateKeyUpdate, updateFields);
 
 		if(conn==null)
 		{
-			return ds.update(qq.toString(), parm.toArray());
+			return ds.update(bound.getSql(), bound.getArgs());
 		}
-		return ds.update(conn, qq.toString(), parm.toArray());
+		return ds.update(conn, bound.getSql(), bound.getArgs());
 	}
 	
 	public void insertList(String table, List<Map> colList) throws Exception
@@ -713,7 +1043,398 @@ public class JDAO implements Closeable
 		}
 	}
 	
-	public <T> List<T> insertListWithPK(String table, List<Map> colList, Class<T> clazz) throws Exception
+	/**
+	 * inserts the rows using jdbc batches of batchSize rows and returns the update count per row.
+	 *
+	 */
+	public int[] insertList(String table, List<Map> colList, int batchSize) throws Exception
+	{
+		this.checkReadOnly();
+		return JDAO.insertList(this.dbType, this.conn, this.queryRunner, table, colList, false, null, batchSize);
+	}
+	
+	public int[] insertList(String table, List<Map> colList, boolean onDuplicateKeyUpdate, Collection updateFields, int batchSize) throws Exception
+	{
+		this.checkReadOnly();
+		return JDAO.insertList(this.dbType, this.conn, this.queryRunner, table, colList, onDuplicateKeyUpdate, updateFields, batchSize);
+	}
+
+	/**
+	 * returns a multi-threaded loader for table, workers take their own connections from the datasource.
+	 *
+	 */
+	public BulkLoader bulkLoader(String table) throws Exception
+	{
+		this.checkReadOnly();
+		return new BulkLoader(this.queryRunner, this.dbType, table);
+	}
+
+	/**
+	 * returns a loader streaming rows into table with COPY, postgresql only.
+	 *
+	 */
+	public PgCopyLoader copyLoader(String table) throws Exception
+	{
+		this.checkReadOnly();
+		if(this.dbType!=DB_TYPE_POSTGRES)
+		{
+			throw new IllegalArgumentException("DB TYPE NOT COPY-ABLE");
+		}
+		return new PgCopyLoader(this.conn, this.queryRunner, table);
+	}
+
+	public long copyList(String table, List<Map> colList) throws Exception
+	{
+		return this.copyLoader(table).load(colList);
+	}
+
+	public long copyList(String table, Iterator<? extends Map> rows, boolean onDuplicateKeyUpdate, Collection updateFields) throws Exception
+	{
+		PgCopyLoader loader = this.copyLoader(table);
+		loader.setOnDuplicateKeyUpdate(onDuplicateKeyUpdate, updateFields);
+		return loader.load(rows);
+	}
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	
+	/**
+	 * inserts the rows using jdbc batches and returns the update count per row (in order of colList).
+	 * <p>
+	 * rows with the same column shape share one prepared statement, which is executed every batchSize rows.
+	 * if updateFields is null, all columns of a row but the primary key are updated on duplicate key.
+	 * the key is only known with a SchemaCache attached, without it postgres and sqlite have no conflict
+	 * columns left and an IllegalArgumentException is thrown, pass the non-key columns as updateFields there.
+	 *
+	 */
+	public static int[] insertList(int dbType, Connection conn, QueryRunner ds, String table, List<Map> colList, boolean onDuplicateKeyUpdate, Collection updateFields, int batchSize) throws Exception
+	{
+		if(batchSize<=0)
+		{
+			batchSize = DEFAULT_BATCH_SIZE;
+		}
+		
+		int[] counts = new int[colList.size()];
+		List<String> primaryKey = onDuplicateKeyUpdate ? JDAO.cachedPrimaryKeyOf(dbType, conn, ds, table) : null;
+		Connection _conn = JDAO.openConnection(conn, ds);
+		Map<String, StatementBatch> batches = new LinkedHashMap<String, StatementBatch>();
+		try
+		{
+			int idx = 0;
+			for(Map row : colList)
+			{
+				Collection _updateFields = onDuplicateKeyUpdate ? JDAO.withoutKeys(updateFields==null ? row.keySet() : updateFields, primaryKey) : null;
+				SqlShapeCache.BoundSql bound = SqlShapeCache.bindInsert(dbType, table, row, onDuplicateKeyUpdate, _updateFields);
+				StatementBatch batch = batches.get(bound.getSql());
+				if(batch==null)
+				{
+					batch = new StatementBatch(_conn.prepareStatement(bound.getSql()), batchSize);
+					batches.put(bound.getSql(), batch);
+				}
+				JDAO.fillStatement(ds, batch.stmt, bound.getSql(), bound.getArgs());
+				batch.add(idx++, counts);
+			}
+			
+			for(StatementBatch batch : batches.values())
+			{
+				batch.flush(counts);
+			}
+		}
+		finally
+		{
+			for(StatementBatch batch : batches.values())
+			{
+				DbUtils.closeQuietly(batch.stmt);
+			}
+			JDAO.releaseConnection(conn, _conn);
+			JDAO.invalidateCaches(ds, conn, table);
+		}
+		return counts;
+	}
+	
+	public int insertListMultiRow(String table, List<Map> colList) throws Exception
+	{
+		this.checkReadOnly();
+		return JDAO.insertListMultiRow(this.dbType, this.conn, this.queryRunner, table, colList, false, null);
+	}
+	
+	public int insertListMultiRow(String table, List<Map> colList, boolean onDuplicateKeyUpdate, Collection updateFields) throws Exception
+	{
+		this.checkReadOnly();
+		return JDAO.insertListMultiRow(this.dbType, this.conn, this.queryRunner, table, colList, onDuplicateKeyUpdate, updateFields);
+	}
+	
+	/**
+	 * inserts the rows using multi-row "INSERT ... VALUES (...),(...)" statements and returns the number of rows effected.
+	 * <p>
+	 * rows are grouped by column shape, each statement carries as many rows as the bind-parameter
+	 * limit of the dbType allows, remainders are split into power-of-two row counts.
+	 * on duplicate key the update columns take the value of the inserted row.
+	 * on postgres a statement ends before a row repeating the conflict key of an earlier row in it,
+	 * since "ON CONFLICT DO UPDATE" cannot affect the same row twice, so later rows still win.
+	 * on postgres and sqlite the columns not updated form the conflict target, if updateFields is null
+	 * that is the primary key known from a SchemaCache, an IllegalArgumentException is thrown if none are left.
+	 * falls back to batched inserts if the dbType has no multi-row insert.
+	 *
+	 */
+	public static int insertListMultiRow(int dbType, Connection conn, QueryRunner ds, String table, List<Map> colList, boolean onDuplicateKeyUpdate, Collection updateFields) throws Exception
+	{
+		int maxRows = JdaoUtils.maxRowsPerInsertPerDbType(dbType);
+		if(maxRows<=0)
+		{
+			int total = 0;
+			for(int c : JDAO.insertList(dbType, conn, ds, table, colList, onDuplicateKeyUpdate, updateFields, DEFAULT_BATCH_SIZE))
+			{
+				total += JDAO.affectedRows(c);
+			}
+			return total;
+		}
+		
+		Map<List<String>, List<Object[]>> shapes = new LinkedHashMap<List<String>, List<Object[]>>();
+		for(Map row : colList)
+		{
+			String[] colNames = new String[row.size()];
+			Object[] values = new Object[row.size()];
+			int i = 0;
+			for(Object kv : row.entrySet())
+			{
+				colNames[i] = String.valueOf(((Map.Entry) kv).getKey());
+				values[i] = ((Map.Entry) kv).getValue();
+				i++;
+			}
+			List<String> shape = Arrays.asList(colNames);
+			List<Object[]> rows = shapes.get(shape);
+			if(rows==null)
+			{
+				rows = new ArrayList<Object[]>();
+				shapes.put(shape, rows);
+			}
+			rows.add(values);
+		}
+		
+		int total = 0;
+		List<String> primaryKey = onDuplicateKeyUpdate ? JDAO.cachedPrimaryKeyOf(dbType, conn, ds, table) : null;
+		Connection _conn = JDAO.openConnection(conn, ds);
+		try
+		{
+			for(Map.Entry<List<String>, List<Object[]>> entry : shapes.entrySet())
+			{
+				String[] colNames = entry.getKey().toArray(new String[0]);
+				String[] updateNames = null;
+				if(onDuplicateKeyUpdate)
+				{
+					Collection _updateFields = JDAO.withoutKeys(updateFields==null ? entry.getKey() : updateFields, primaryKey);
+					updateNames = new String[_updateFields.size()];
+					int j = 0;
+					for(Object o : _updateFields)
+					{
+						updateNames[j++] = String.valueOf(o);
+					}
+				}
+				
+				int[] conflictKey = null;
+				if(onDuplicateKeyUpdate && dbType==DB_TYPE_POSTGRES)
+				{
+					conflictKey = JDAO.conflictKeyOf(colNames, updateNames);
+					if(conflictKey.length==0)
+					{
+						// would cut every chunk down to one row before the statement fails anyway
+						throw new IllegalArgumentException("no conflict columns left, all columns are updated");
+					}
+				}
+				
+				int chunk = Math.max(1, Math.min(maxRows, JdaoUtils.maxBindParametersPerDbType(dbType) / Math.max(1, colNames.length)));
+				List<Object[]> rows = entry.getValue();
+				for(int offset = 0, n = 0; offset < rows.size(); offset += n)
+				{
+					n = Math.min(chunk, rows.size()-offset);
+					if(conflictKey!=null)
+					{
+						n = JDAO.uniqueKeyRun(rows, offset, n, conflictKey);
+					}
+					if(n<chunk)
+					{
+						// remainders go in power-of-two pieces to keep the number of cached shapes small
+						n = Integer.highestOneBit(n);
+					}
+					Object[] parm = new Object[n*colNames.length];
+					for(int r = 0; r < n; r++)
+					{
+						System.arraycopy(rows.get(offset+r), 0, parm, r*colNames.length, colNames.length);
+					}
+					String sql = SqlShapeCache.insertValuesSql(dbType, table, colNames, n, onDuplicateKeyUpdate, updateNames);
+					total += ds.update(_conn, sql, parm);
+				}
+			}
+		}
+		finally
+		{
+			JDAO.releaseConnection(conn, _conn);
+		}
+		return total;
+	}
+	
+	/**
+	 * returns the indexes of the columns forming the conflict target, those not updated.
+	 *
+	 */
+	static int[] conflictKeyOf(String[] colNames, String[] updateNames)
+	{
+		List<String> _updateNames = Arrays.asList(updateNames);
+		int[] key = new int[colNames.length];
+		int k = 0;
+		for(int i = 0; i < colNames.length; i++)
+		{
+			if(!_updateNames.contains(colNames[i]))
+			{
+				key[k++] = i;
+			}
+		}
+		return Arrays.copyOf(key, k);
+	}
+	
+	/**
+	 * returns how many of the n rows starting at offset can go into one statement before a conflict key repeats.
+	 *
+	 */
+	static int uniqueKeyRun(List<Object[]> rows, int offset, int n, int[] conflictKey)
+	{
+		Set<List<Object>> seen = new HashSet<List<Object>>();
+		for(int r = 0; r < n; r++)
+		{
+			Object[] row = rows.get(offset+r);
+			Object[] key = new Object[conflictKey.length];
+			for(int i = 0; i < conflictKey.length; i++)
+			{
+				key[i] = row[conflictKey[i]];
+			}
+			if(!seen.add(Arrays.asList(key)))
+			{
+				return r;
+			}
+		}
+		return n;
+	}
+	
+	/**
+	 * returns the given connection or borrows one from the query runners datasource.
+	 *
+	 */
+	static Connection openConnection(Connection conn, QueryRunner ds) throws SQLException
+	{
+		if(conn!=null)
+		{
+			return conn;
+		}
+		if(ds.getDataSource()==null)
+		{
+			throw new SQLException("QueryRunner requires a DataSource to be invoked in this way, or a Connection should be passed in");
+		}
+		return ds.getDataSource().getConnection();
+	}
+	
+	/**
+	 * closes the connection if it was borrowed by openConnection.
+	 *
+	 */
+	static void releaseConnection(Connection conn, Connection _conn) throws SQLException
+	{
+		if(conn==null && _conn!=null)
+		{
+			_conn.close();
+		}
+	}
+	
+	/**
+	 * rows effected by one batch entry, SUCCESS_NO_INFO (as reported by oracle and some mssql setups) counts as one.
+	 *
+	 */
+	static int affectedRows(int updateCount)
+	{
+		if(updateCount==Statement.SUCCESS_NO_INFO)
+		{
+			return 1;
+		}
+		return updateCount>0 ? updateCount : 0;
+	}
+	
+	/**
+	 * a prepared statement collecting rows with addBatch, remembering the row index for each batch entry.
+	 *
+	 */
+	static class StatementBatch
+	{
+		final PreparedStatement stmt;
+		final int[] rows;
+		int count = 0;
+		
+		StatementBatch(PreparedStatement stmt, int batchSize)
+		{
+			this.stmt = stmt;
+			this.rows = new int[batchSize];
+		}
+		
+		int add(int row, int[] counts) throws SQLException
+		{
+			return this.add(row, counts, null);
+		}
+		
+		int add(int row, int[] counts, Object[] keys) throws SQLException
+		{
+			this.stmt.addBatch();
+			this.rows[this.count++] = row;
+			if(this.count>=this.rows.length)
+			{
+				return this.flush(counts, keys);
+			}
+			return 0;
+		}
+		
+		int flush(int[] counts) throws SQLException
+		{
+			return this.flush(counts, null);
+		}
+		
+		/**
+		 * executes the batch, stores the update counts and (if keys is given) the generated keys by row index.
+		 *
+		 */
+		int flush(int[] counts, Object[] keys) throws SQLException
+		{
+			if(this.count==0)
+			{
+				return 0;
+			}
+			int[] res = this.stmt.executeBatch();
+			if(keys!=null)
+			{
+				ResultSet rs = this.stmt.getGeneratedKeys();
+				try
+				{
+					for(int i = 0; i < this.count && rs.next(); i++)
+					{
+						keys[this.rows[i]] = rs.getObject(1);
+					}
+				}
+				finally
+				{
+					DbUtils.closeQuietly(rs);
+				}
+			}
+			int total = 0;
+			for(int i = 0; i < res.length && i < this.count; i++)
+			{
+				if(counts!=null)
+				{
+					counts[this.rows[i]] = res[i];
+				}
+				total += JDAO.affectedRows(res[i]);
+			}
+			this.count = 0;
+			return total;
+		}
+	}
+	
+	public <T> List<T> insertListWithPK(String table, List<Map> colList, Class<T> clazz) throws Exception
 	{
 		this.checkReadOnly();
 		return this.insertListWithPK(table, colList, null, clazz);
@@ -755,6 +1476,104 @@ public class JDAO implements Closeable
 		return res;
 	}
 	
+	public <T> List<T> insertListWithPK(String table, List<Map> colList, String keyField, Class<T> clazz, int batchSize) throws Exception
+	{
+		this.checkReadOnly();
+		return JDAO.insertListWithPK(this.dbType, this.conn, this.queryRunner, table, colList, false, null, keyField, clazz, batchSize);
+	}
+	
+	/**
+	 * inserts the rows using jdbc batches and returns the generated keys in order of colList, converted to clazz.
+	 * <p>
+	 * keyField names the generated key column, if null the first generated key column is used.
+	 * on sqlite each row is inserted with "RETURNING keyField" (or rowid) on a single prepared statement,
+	 * all other dbTypes use executeBatch with generated keys (pgjdbc turns this into RETURNING).
+	 * with onDuplicateKeyUpdate rows are executed one per statement, since updated rows return no key
+	 * (or the old one) and batched keys could not be matched to their rows; updated rows may get a null key.
+	 *
+	 */
+	public static <T> List<T> insertListWithPK(int dbType, Connection conn, QueryRunner ds, String table, List<Map> colList, boolean onDuplicateKeyUpdate, Collection updateFields, String keyField, Class<T> clazz, int batchSize) throws Exception
+	{
+		if(onDuplicateKeyUpdate && (dbType != JDAO.DB_TYPE_MYSQL) && (dbType != JDAO.DB_TYPE_CRATE))
+		{
+			throw new IllegalArgumentException("DB TYPE NOT MYSQL");
+		}
+		if(batchSize<=0)
+		{
+			batchSize = DEFAULT_BATCH_SIZE;
+		}
+		
+		Object[] keys = new Object[colList.size()];
+		List<String> primaryKey = onDuplicateKeyUpdate ? JDAO.cachedPrimaryKeyOf(dbType, conn, ds, table) : null;
+		Connection _conn = JDAO.openConnection(conn, ds);
+		Map<String, StatementBatch> batches = new LinkedHashMap<String, StatementBatch>();
+		try
+		{
+			int idx = 0;
+			for(Map row : colList)
+			{
+				Collection _updateFields = onDuplicateKeyUpdate ? JDAO.withoutKeys(updateFields==null ? row.keySet() : updateFields, primaryKey) : null;
+				SqlShapeCache.BoundSql bound = SqlShapeCache.bindInsert(dbType, table, row, onDuplicateKeyUpdate, _updateFields);
+				StatementBatch batch = batches.get(bound.getSql());
+				if(batch==null)
+				{
+					if(dbType==DB_TYPE_SQLITE)
+					{
+						batch = new StatementBatch(_conn.prepareStatement(bound.getSql()+" RETURNING "+(keyField==null ? "rowid" : keyField)), 1);
+					}
+					else
+					if(keyField!=null)
+					{
+						batch = new StatementBatch(_conn.prepareStatement(bound.getSql(), new String[] { keyField }), onDuplicateKeyUpdate ? 1 : batchSize);
+					}
+					else
+					{
+						batch = new StatementBatch(_conn.prepareStatement(bound.getSql(), Statement.RETURN_GENERATED_KEYS), onDuplicateKeyUpdate ? 1 : batchSize);
+					}
+					batches.put(bound.getSql(), batch);
+				}
+				JDAO.fillStatement(ds, batch.stmt, bound.getSql(), bound.getArgs());
+				if(dbType==DB_TYPE_SQLITE)
+				{
+					ResultSet rs = batch.stmt.executeQuery();
+					try
+					{
+						keys[idx++] = rs.next() ? rs.getObject(1) : null;
+					}
+					finally
+					{
+						DbUtils.closeQuietly(rs);
+					}
+				}
+				else
+				{
+					batch.add(idx++, null, keys);
+				}
+			}
+			
+			for(StatementBatch batch : batches.values())
+			{
+				batch.flush(null, keys);
+			}
+		}
+		finally
+		{
+			for(StatementBatch batch : batches.values())
+			{
+				DbUtils.closeQuietly(batch.stmt);
+			}
+			JDAO.releaseConnection(conn, _conn);
+			JDAO.invalidateCaches(ds, conn, table);
+		}
+		
+		ArrayList<T> res = new ArrayList<T>(keys.length);
+		for(Object key : keys)
+		{
+			res.add(JdaoUtils.convertTo(key, clazz));
+		}
+		return res;
+	}
+	
 	public static <T> T insertWithPK(int dbType, Connection conn, QueryRunner ds, String table, Map cols, Class<T> clazz)
 			throws Exception
 	{
@@ -774,71 +1593,159 @@ public class JDAO implements Closeable
 		{
 			throw new IllegalArgumentException("DB TYPE NOT MYSQL");
 		}
-		Vector parm = new Vector();
-		StringBuilder qq=new StringBuilder();
-		qq.append("INSERT INTO "+table+" ( ");
-		boolean op = true;
-		for(Object kv : cols.entrySet())
+		SqlShapeCache.BoundSql bound = SqlShapeCache.bindInsert(dbType, table, cols, onDuplicateKeyUpdate, updateFields);
+		
+		if(conn==null)
 		{
-			parm.add(((Map.Entry)kv).getValue());
-			if(!op)
-			{
-				qq.append(",");
-			}
-			qq.append(((Map.Entry)kv).getKey());
-			op=false;
+			return ds.insert(bound.getSql(), new ScalarHandler<T>(), bound.getArgs());
 		}
-		qq.append(" ) VALUES (");
-		op = true;
-		for(Object v : parm)
+		return ds.insert(conn, bound.getSql(), new ScalarHandler<T>(), bound.getArgs());
+	}
+	
+	public void insertKvMap(String table, String kvSF, String kvKF, String kvVF, String scopeId, Map<String,String> kvMap, boolean onDuplicateKeyUpdate) throws Exception
+	{
+		JDAO.insertKvMap(this.dbType, this.conn, this.queryRunner, table,kvSF, kvKF, kvVF, scopeId, kvMap, onDuplicateKeyUpdate);
+	}
+	
+	public int insertKvMap(String table, String kvSF, String kvKF, String kvVF, String scopeId, Map<String,String> kvMap, boolean onDuplicateKeyUpdate, boolean diffOnly) throws Exception
+	{
+		this.checkReadOnly();
+		return JDAO.insertKvMap(this.dbType, this.conn, this.queryRunner, table,kvSF, kvKF, kvVF, scopeId, kvMap, onDuplicateKeyUpdate, diffOnly);
+	}
+	
+	/**
+	 * writes all entries of the map into the scope using one prepared (upsert) statement in jdbc batches.
+	 *
+	 */
+	public static void insertKvMap(int dbType, Connection conn, QueryRunner ds, String table, String kvSF, String kvKF, String kvVF, String scopeId, Map<String,String> kvMap, boolean onDuplicateKeyUpdate)
+			throws Exception
+	{
+		JDAO.batchKvMap(dbType, conn, ds, table, kvSF, kvKF, kvVF, scopeId, kvMap, onDuplicateKeyUpdate);
+	}
+	
+	static int batchKvMap(int dbType, Connection conn, QueryRunner ds, String table, String kvSF, String kvKF, String kvVF, String scopeId, Map<String,String> kvMap, boolean onDuplicateKeyUpdate)
+			throws Exception
+	{
+		String sql = SqlShapeCache.insertSql(dbType, table, new String[] { kvSF, kvKF, kvVF }, onDuplicateKeyUpdate, new String[] { kvKF, kvVF });
+		List<Object[]> parm = new ArrayList<Object[]>(kvMap.size());
+		for(Map.Entry<String, String> entry : kvMap.entrySet())
 		{
-			if(!op)
+			parm.add(onDuplicateKeyUpdate
+					? new Object[] { scopeId, entry.getKey(), entry.getValue(), entry.getKey(), entry.getValue() }
+					: new Object[] { scopeId, entry.getKey(), entry.getValue() });
+		}
+		return JDAO.batch(conn, ds, sql, parm, DEFAULT_BATCH_SIZE);
+	}
+	
+	/**
+	 * writes the map into the scope and returns the number of rows effected.
+	 * <p>
+	 * if diffOnly is set, the current scope is read first (never from the result cache)
+	 * and only added keys are inserted, changed keys are updated and removed keys are deleted.
+	 *
+	 */
+	public static int insertKvMap(int dbType, Connection conn, QueryRunner ds, String table, String kvSF, String kvKF, String kvVF, String scopeId, Map<String,String> kvMap, boolean onDuplicateKeyUpdate, boolean diffOnly)
+			throws Exception
+	{
+		if(!diffOnly)
+		{
+			return JDAO.batchKvMap(dbType, conn, ds, table, kvSF, kvKF, kvVF, scopeId, kvMap, onDuplicateKeyUpdate);
+		}
+		
+		// the diff feeds the writes, so the current scope is read past the result cache
+		String sql = "SELECT "+kvKF+","+kvVF+" FROM "+table+" WHERE "+kvSF+"=?";
+		Map<String,String> current = (conn==null)
+				? ds.query(sql, kvMapHandler, scopeId)
+				: ds.query(conn, sql, kvMapHandler, scopeId);
+		
+		List<Object[]> inserts = new ArrayList<Object[]>();
+		List<Object[]> updates = new ArrayList<Object[]>();
+		List<Object[]> deletes = new ArrayList<Object[]>();
+		for(Map.Entry<String, String> entry : kvMap.entrySet())
+		{
+			if(!current.containsKey(entry.getKey()))
+			{
+				inserts.add(onDuplicateKeyUpdate
+						? new Object[] { scopeId, entry.getKey(), entry.getValue(), entry.getKey(), entry.getValue() }
+						: new Object[] { scopeId, entry.getKey(), entry.getValue() });
+			}
+			else
+			if(!current.get(entry.getKey()).equals(String.valueOf(entry.getValue())))
 			{
-				qq.append(",");
+				updates.add(new Object[] { entry.getValue(), scopeId, entry.getKey() });
 			}
-			qq.append("?");
-			op=false;
 		}
-		qq.append(" ) ");
-		
-		if(onDuplicateKeyUpdate)
+		for(String key : current.keySet())
 		{
-			Map um =new HashMap();
-			for(Object o : updateFields)
+			if(!kvMap.containsKey(key))
 			{
-				um.put(o, cols.get(o));
+				deletes.add(new Object[] { scopeId, key });
 			}
-			String setuqq = JdaoUtils.buildSet(dbType, parm, um);
-			qq.append(" ON DUPLICATE KEY UPDATE ");
-			qq.append(setuqq);
 		}
 		
-		if(conn==null)
+		int total = 0;
+		if(inserts.size()>0)
 		{
-			return ds.insert(qq.toString(), new ScalarHandler<T>(), parm.toArray());
+			total += JDAO.batch(conn, ds, SqlShapeCache.insertSql(dbType, table, new String[] { kvSF, kvKF, kvVF }, onDuplicateKeyUpdate, new String[] { kvKF, kvVF }), inserts, DEFAULT_BATCH_SIZE);
 		}
-		return ds.insert(conn, qq.toString(), new ScalarHandler<T>(), parm.toArray());
-	}
-	
-	public void insertKvMap(String table, String kvSF, String kvKF, String kvVF, String scopeId, Map<String,String> kvMap, boolean onDuplicateKeyUpdate) throws Exception
-	{
-		JDAO.insertKvMap(this.dbType, this.conn, this.queryRunner, table,kvSF, kvKF, kvVF, scopeId, kvMap, onDuplicateKeyUpdate);
+		if(updates.size()>0)
+		{
+			total += JDAO.batch(conn, ds, SqlShapeCache.updateSql(dbType, table, new String[] { kvVF }, new String[] { kvSF, kvKF }), updates, DEFAULT_BATCH_SIZE);
+		}
+		if(deletes.size()>0)
+		{
+			total += JDAO.batch(conn, ds, "DELETE FROM "+table+" WHERE ("+kvSF+" = ?) AND ("+kvKF+" = ?)", deletes, DEFAULT_BATCH_SIZE);
+		}
+		return total;
 	}
 	
-	public static void insertKvMap(int dbType, Connection conn, QueryRunner ds, String table, String kvSF, String kvKF, String kvVF, String scopeId, Map<String,String> kvMap, boolean onDuplicateKeyUpdate)
+	/**
+	 * executes the statement for each parameter row in jdbc batches of batchSize and returns the number of rows effected.
+	 *
+	 */
+	public static int batch(Connection conn, QueryRunner ds, String sql, List<Object[]> parm, int batchSize)
 			throws Exception
 	{
-		for(Map.Entry<String, String> entry : kvMap.entrySet())
+		if(batchSize<=0)
+		{
+			batchSize = DEFAULT_BATCH_SIZE;
+		}
+		
+		int total = 0;
+		Connection _conn = JDAO.openConnection(conn, ds);
+		try
 		{
-			JDAO.insert(dbType, conn, ds, table, JDAO.toMap(kvSF, scopeId, kvKF, entry.getKey(), kvVF, entry.getValue()), onDuplicateKeyUpdate, JDAO.toCollection(kvKF, kvVF));
+			for(int offset = 0; offset < parm.size(); offset += batchSize)
+			{
+				List<Object[]> chunk = parm.subList(offset, Math.min(parm.size(), offset+batchSize));
+				for(int c : ds.batch(_conn, sql, chunk.toArray(new Object[chunk.size()][])))
+				{
+					total += JDAO.affectedRows(c);
+				}
+			}
 		}
+		finally
+		{
+			JDAO.releaseConnection(conn, _conn);
+		}
+		return total;
 	}
 	
-
 	
 	
+	
+	/**
+	 * returns the column names of the table, served from the SchemaCache of a JdaoQueryRunner if it has one.
+	 *
+	 */
 	public static List<String> queryFieldList(int dbType, Connection conn, QueryRunner ds, String schemaName, String tableName) throws Exception
 	{
+		SchemaCache cache = JDAO.schemaCacheOf(ds);
+		if(cache!=null)
+		{
+			TableMetadata metadata = cache.get(dbType, conn, ds, schemaName, tableName);
+			return metadata==null ? new ArrayList<String>() : metadata.getColumnNames();
+		}
 		switch(dbType)
 		{
 			case DB_TYPE_POSTGRES:
@@ -861,6 +1768,134 @@ public class JDAO implements Closeable
 		}
 	}
 	
+	/**
+	 * returns columns and primary key of the table or null if there is no such table,
+	 * served from the SchemaCache of a JdaoQueryRunner if it has one.
+	 *
+	 */
+	public static TableMetadata queryTableMetadata(int dbType, Connection conn, QueryRunner ds, String schemaName, String tableName) throws Exception
+	{
+		SchemaCache cache = JDAO.schemaCacheOf(ds);
+		if(cache!=null)
+		{
+			return cache.get(dbType, conn, ds, schemaName, tableName);
+		}
+		Connection _conn = JDAO.openConnection(conn, ds);
+		try
+		{
+			return TableMetadata.load(dbType, _conn, schemaName, tableName);
+		}
+		finally
+		{
+			JDAO.releaseConnection(conn, _conn);
+		}
+	}
+	
+	public static List<String> queryPrimaryKeyList(int dbType, Connection conn, QueryRunner ds, String schemaName, String tableName) throws Exception
+	{
+		TableMetadata metadata = JDAO.queryTableMetadata(dbType, conn, ds, schemaName, tableName);
+		return metadata==null ? new ArrayList<String>() : new ArrayList<String>(metadata.getPrimaryKey());
+	}
+	
+	public List<String> queryFieldList(String schemaName, String tableName) throws Exception
+	{
+		return JDAO.queryFieldList(this.dbType, this.conn, this.queryRunner, schemaName, tableName);
+	}
+	
+	public TableMetadata queryTableMetadata(String schemaName, String tableName) throws Exception
+	{
+		return JDAO.queryTableMetadata(this.dbType, this.conn, this.queryRunner, schemaName, tableName);
+	}
+	
+	public List<String> queryPrimaryKeyList(String schemaName, String tableName) throws Exception
+	{
+		return JDAO.queryPrimaryKeyList(this.dbType, this.conn, this.queryRunner, schemaName, tableName);
+	}
+	
+	static SchemaCache schemaCacheOf(QueryRunner ds)
+	{
+		return (ds instanceof JdaoQueryRunner) ? ((JdaoQueryRunner) ds).getSchemaCache() : null;
+	}
+	
+	/**
+	 * returns the cached metadata of a table given as "[schema.]table", or null without SchemaCache or table.
+	 *
+	 */
+	static TableMetadata cachedMetadataOf(int dbType, Connection conn, QueryRunner ds, String table) throws Exception
+	{
+		SchemaCache cache = JDAO.schemaCacheOf(ds);
+		if(cache==null || table==null || !SIMPLE_TABLE_NAME.matcher(table).matches())
+		{
+			return null;
+		}
+		String[] name = SchemaCache.splitTableName(table);
+		return cache.get(dbType, conn, ds, name[0], name[1]);
+	}
+	
+	// "table", "schema.table" with optional quoting, but no joins or subqueries
+	static final Pattern SIMPLE_TABLE_NAME = Pattern.compile("\\s*(?:(?:\"[^\"]+\"|`[^`]+`|\\[[^\\]]+\\]|[\\w$]+)\\.)?(?:\"[^\"]+\"|`[^`]+`|\\[[^\\]]+\\]|[\\w$]+)\\s*");
+	
+	static List<String> cachedPrimaryKeyOf(int dbType, Connection conn, QueryRunner ds, String table) throws Exception
+	{
+		TableMetadata metadata = JDAO.cachedMetadataOf(dbType, conn, ds, table);
+		return metadata==null ? null : metadata.getPrimaryKey();
+	}
+	
+	/**
+	 * returns the fields without the primary key columns (case-insensitive), on upsert the key is never updated.
+	 *
+	 */
+	static Collection withoutKeys(Collection fields, List<String> primaryKey)
+	{
+		if(fields==null || primaryKey==null || primaryKey.isEmpty())
+		{
+			return fields;
+		}
+		List ret = new ArrayList(fields.size());
+		for(Object field : fields)
+		{
+			boolean key = false;
+			for(String pk : primaryKey)
+			{
+				if(pk.equalsIgnoreCase(String.valueOf(field)))
+				{
+					key = true;
+					break;
+				}
+			}
+			if(!key)
+			{
+				ret.add(field);
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * rejects template keys that are not columns of the table, if the table is known to the SchemaCache.
+	 *
+	 */
+	static void checkTemplateColumns(int dbType, Connection conn, QueryRunner ds, String table, Map<String,Object> vm) throws Exception
+	{
+		if(vm==null || vm.isEmpty())
+		{
+			return;
+		}
+		TableMetadata metadata = JDAO.cachedMetadataOf(dbType, conn, ds, table);
+		if(metadata==null)
+		{
+			return;
+		}
+		for(String key : vm.keySet())
+		{
+			String column = key.substring(key.lastIndexOf('.')+1);
+			if(!metadata.hasColumn(SchemaCache.unquote(column)))
+			{
+				throw new IllegalArgumentException("unknown column "+key+" in table "+table);
+			}
+		}
+	}
+	
 
 	
 	QueryRunner queryRunner = null;
@@ -917,6 +1952,52 @@ public class JDAO implements Closeable
 		return JDAO.queryForList(this.dbType, this.conn, this.queryRunner, sql);
 	}
 	
+	public <T> List<T> queryParallelScan(String table, Collection cols, Map<String,Object> vm, String keyColumn, int parallelism, ResultRowCallbackHandler<T> sink)
+			throws Exception
+	{
+		return JDAO.queryParallelScan(this.dbType, this.queryRunner, table, cols, vm, keyColumn, parallelism, sink);
+	}
+	
+	public <T> T queryLargeResultForT(ResultSetHandler<T> rsHandler, int fetchSize, String sql, Object... args)
+			throws Exception
+	{
+		return JDAO.queryLargeResultForT(this.dbType, rsHandler, this.conn, this.queryRunner, fetchSize, sql, args);
+	}
+	
+	public ResultCursor<Map<String,Object>> queryForIterator(String sql, Object... args)
+			throws Exception
+	{
+		return JDAO.queryForIterator(this.dbType, this.conn, this.queryRunner, DEFAULT_FETCH_SIZE, sql, args);
+	}
+	
+	public ResultCursor<Map<String,Object>> queryForIterator(int fetchSize, String sql, Object... args)
+			throws Exception
+	{
+		return JDAO.queryForIterator(this.dbType, this.conn, this.queryRunner, fetchSize, sql, args);
+	}
+	
+	public Publisher<Map<String,Object>> queryForPublisher(String sql, Object... args)
+	{
+		return JDAO.queryForPublisher(this.dbType, this.conn, this.queryRunner, DEFAULT_FETCH_SIZE, sql, args);
+	}
+	
+	public Publisher<Map<String,Object>> queryForPublisher(int fetchSize, String sql, Object... args)
+	{
+		return JDAO.queryForPublisher(this.dbType, this.conn, this.queryRunner, fetchSize, sql, args);
+	}
+	
+	public Stream<Map<String,Object>> queryForStream(String sql, Object... args)
+			throws Exception
+	{
+		return JDAO.queryForStream(this.dbType, this.conn, this.queryRunner, DEFAULT_FETCH_SIZE, sql, args);
+	}
+	
+	public Stream<Map<String,Object>> queryForStream(int fetchSize, String sql, Object... args)
+			throws Exception
+	{
+		return JDAO.queryForStream(this.dbType, this.conn, this.queryRunner, fetchSize, sql, args);
+	}
+	
 	public  List<Map<String,Object>>
 	queryForMapList(String sql, Object... args)
 			throws Exception
@@ -952,6 +2033,18 @@ public class JDAO implements Closeable
 		return JDAO.queryTemplateForMapList(this.dbType, this.conn, this.queryRunner,  table, vm);
 	}
 	
+	public ColumnarResult queryForColumns(String sql, Object... args)
+			throws Exception
+	{
+		return JDAO.queryForColumns(this.dbType, this.conn, this.queryRunner, sql, args);
+	}
+	
+	public ColumnarResult queryForColumns(int fetchSize, String sql, Object... args)
+			throws Exception
+	{
+		return JDAO.queryForColumns(this.dbType, this.conn, this.queryRunner, fetchSize, sql, args);
+	}
+	
 	public  List<Object[]> queryForArrayList(String sql, Object... args)
 			throws Exception
 	{
@@ -994,7 +2087,6 @@ public class JDAO implements Closeable
 	queryTemplateForColumnList(String table, String col, Map<String,Object> vm, String suffixQuery, int templateType, int constraintType)
 			throws Exception
 	{
-		List param = new Vector();
 		return JDAO.queryTemplateForColumnList(this.dbType, this.conn, this.queryRunner,  table, col, vm, suffixQuery, templateType, constraintType);
 	}
 	
@@ -1002,7 +2094,6 @@ public class JDAO implements Closeable
 	queryTemplateForColumnList(String table, String col, Map<String,Object> vm, String suffixQuery)
 			throws Exception
 	{
-		List param = new Vector();
 		return JDAO.queryTemplateForColumnList(this.dbType, this.conn, this.queryRunner,  table, col, vm, suffixQuery);
 	}
 	
@@ -1010,7 +2101,6 @@ public class JDAO implements Closeable
 	queryTemplateForColumnList(String table, String col, Map<String,Object> vm)
 			throws Exception
 	{
-		List param = new Vector();
 		return JDAO.queryTemplateForColumnList(this.dbType, this.conn, this.queryRunner,  table, col, vm);
 	}
 	
@@ -1066,7 +2156,7 @@ public class JDAO implements Closeable
 	queryTemplateForKvMap(String table, String c1, String c2, Map<String,Object> vm, String suffixQuery, int templateType, int constraintType)
 			throws Exception
 	{
-		List param = new Vector();
+		List param = new ArrayList();
 		return JDAO.queryForKvMap(this.dbType, this.conn, this.queryRunner,  "SELECT "+c1+","+c2+" FROM "+table+" WHERE "+JdaoUtils.buildWhere(dbType, templateType, constraintType, param, vm)+(suffixQuery==null?"":" "+suffixQuery), param);
 	}
 	
@@ -1111,7 +2201,7 @@ public class JDAO implements Closeable
 	queryTemplateForKvListMap(String table, String c1, String c2, Map<String,Object> vm, String suffixQuery, int templateType, int constraintType)
 			throws Exception
 	{
-		List param = new Vector();
+		List param = new ArrayList();
 		return JDAO.queryForKvListMap(this.dbType, this.conn, this.queryRunner,  "SELECT "+c1+","+c2+" FROM "+table+" WHERE "+JdaoUtils.buildWhere(dbType, templateType, constraintType, param, vm)+(suffixQuery==null?"":" "+suffixQuery), param);
 	}
 	
@@ -1240,6 +2330,7 @@ public class JDAO implements Closeable
 			if(conn!=null)
 			{
 				conn.rollback();
+				JDAO.afterRollback(queryRunner, conn);
 			}
 		}
 		catch(Exception xe) {}
@@ -1252,6 +2343,7 @@ public class JDAO implements Closeable
 			if(conn!=null)
 			{
 				conn.commit();
+				JDAO.afterCommit(queryRunner, conn);
 			}
 		}
 		catch(Exception xe) {}
@@ -1261,6 +2353,10 @@ public class JDAO implements Closeable
 	{
 		try
 		{
+			if(conn!=null && queryRunner instanceof JdaoQueryRunner)
+			{
+				((JdaoQueryRunner) queryRunner).clearStatementCache(conn);
+			}
 			if(conn!=null)
 			{
 				conn.close();
@@ -1302,7 +2398,7 @@ public class JDAO implements Closeable
 					String key = String.valueOf(row[0]);
 					if(!ret.containsKey(key))
 					{
-						ret.put(key, new Vector<String>());
+						ret.put(key, new ArrayList<String>());
 					}
 					ret.get(key).add(String.valueOf(row[1]));
 				}
@@ -1359,9 +2455,23 @@ public class JDAO implements Closeable
 		{
 			ArrayList rows = new ArrayList();
 			
+			ResultRow.ColumnIndex columnIndex = null;
 			while(rs.next())
 			{
-				T row = this.rowCallback.handleRow(rowProcessor.toMap(rs));
+				Map<String,Object> map;
+				if(this.rowProcessor instanceof BasicXRowProcessor)
+				{
+					if(columnIndex==null)
+					{
+						columnIndex = ResultRow.ColumnIndex.of(rs);
+					}
+					map = ResultRow.of(columnIndex, rs);
+				}
+				else
+				{
+					map = this.rowProcessor.toMap(rs);
+				}
+				T row = this.rowCallback.handleRow(map);
 				if(row!=null)
 				{
 					rows.add(row);
@@ -1372,6 +2482,31 @@ public class JDAO implements Closeable
 		}
 	}
 	
+	/**
+	 * map-list handler that builds the column index once per result set and returns flyweight rows.
+	 *
+	 */
+	public static class RowMapListHandler implements ResultSetHandler<List<Map<String,Object>>>
+	{
+		public RowMapListHandler() { super(); }
+		
+		@Override
+		public List<Map<String,Object>> handle(ResultSet rs) throws SQLException
+		{
+			List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>();
+			ResultRow.ColumnIndex columnIndex = null;
+			while(rs.next())
+			{
+				if(columnIndex==null)
+				{
+					columnIndex = ResultRow.ColumnIndex.of(rs);
+				}
+				rows.add(ResultRow.of(columnIndex, rs));
+			}
+			return rows;
+		}
+	}
+	
 	public static class BasicXRowProcessor extends BasicRowProcessor
 	{
 		
@@ -1380,71 +2515,12 @@ public class JDAO implements Closeable
 		@Override
 		public Map<String,Object> toMap(ResultSet rs) throws SQLException
 		{
-			Map result = new CaseInsensitiveHashMap();
-			ResultSetMetaData rsmd = rs.getMetaData();
-			int cols = rsmd.getColumnCount();
-			
-			for (int i = 1; i <= cols; i++) {
-				if(rsmd.getColumnLabel(i)!=null)
-				{
-					result.put(rsmd.getColumnLabel(i), rs.getObject(i));
-				}
-				else
-				{
-					result.put(rsmd.getColumnName(i), rs.getObject(i));
-				}
-			}
-			
-			return result;
+			return ResultRow.of(ResultRow.ColumnIndex.of(rs), rs);
 		}
 		
-		private static class CaseInsensitiveHashMap extends HashMap
+		public Map<String,Object> toMap(ResultSet rs, ResultRow.ColumnIndex columnIndex) throws SQLException
 		{
-			/**
-			 * @see Map#containsKey(Object)
-			 */
-			public boolean containsKey(Object key)
-			{
-				return super.containsKey(key.toString().toLowerCase());
-			}
-			
-			/**
-			 * @see Map#get(Object)
-			 */
-			public Object get(Object key)
-			{
-				return super.get(key.toString().toLowerCase());
-			}
-			
-			/**
-			 * @see Map#put(Object, Object)
-			 */
-			public Object put(Object key, Object value)
-			{
-				return super.put(key.toString().toLowerCase(), value);
-			}
-			
-			/**
-			 * @see Map#putAll(Map)
-			 */
-			public void putAll(Map m)
-			{
-				Iterator iter = m.keySet().iterator();
-				while (iter.hasNext())
-				{
-					Object key = iter.next();
-					Object value = m.get(key);
-					this.put(key, value);
-				}
-			}
-			
-			/**
-			 * @see Map#remove(Object)
-			 */
-			public Object remove(Object key)
-			{
-				return super.remove(key.toString().toLowerCase());
-			}
+			return ResultRow.of(columnIndex, rs);
 		}
 	}
 }
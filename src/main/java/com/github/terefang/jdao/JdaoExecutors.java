@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2017. terefang@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.terefang.jdao;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * executors for blocking jdao work.
+ * <p>
+ * this is the java 8 implementation using a bounded pool of platform threads,
+ * the multi-release jar replaces it on java 21+ with virtual threads (META-INF/versions/21).
+ *
+ */
+public class JdaoExecutors
+{
+	/**
+	 * true if tasks run on virtual threads.
+	 *
+	 */
+	public static boolean isVirtual()
+	{
+		return false;
+	}
+
+	/**
+	 * creates an executor for blocking tasks, size bounds the number of platform threads, size<=0 for no bound
+	 * (as the java 21 layer).
+	 *
+	 */
+	public static ExecutorService newTaskExecutor(String name, int size)
+	{
+		final String prefix = name+"-";
+		final AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, prefix+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		if(size<=0)
+		{
+			return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), factory);
+		}
+		ThreadPoolExecutor tpe = new ThreadPoolExecutor(size, size, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+		tpe.allowCoreThreadTimeOut(true);
+		return tpe;
+	}
+}
@@ -0,0 +1,1115 @@
+/*
+ * Copyright (c) 2017. terefang@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.terefang.jdao;
+
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.ResultSetHandler;
+
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * query runner that keeps a bounded, lru-evicted cache of prepared statements per connection.
+ * <p>
+ * statements are keyed by their final sql string (after named parameter and dialect rewriting),
+ * connections obtained from the datasource for a single call are never cached.
+ * <p>
+ * an optional ResultCache is consulted by JDAO.queryForT, an optional JBAO.IdentityCache by JBAO.findById,
+ * both are invalidated by every update, insert and batch run here, and once more by afterCommit for writes done
+ * with autocommit off. an optional SchemaCache holds table metadata and is cleared by ddl run here.
+ * <p>
+ * with typed parameters on, parameters are bound with the setter matching the column type, taken from the
+ * SchemaCache for statements built by SqlShapeCache, otherwise from ParameterMetaData read once per sql.
+ *
+ */
+public class JdaoQueryRunner extends QueryRunner
+{
+	public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+	static final int PARAMETER_TYPE_CACHE_SIZE = 1024;
+	static final int UNKNOWN_TYPE = Integer.MIN_VALUE;
+
+	private int statementCacheSize = 0;
+
+	private final Map<Connection, StatementCache> statementCaches = new IdentityHashMap<Connection, StatementCache>();
+	private final Map<Statement, CachedStatement> checkedOut = new IdentityHashMap<Statement, CachedStatement>();
+	private final Set<Connection> transientConnections = Collections.newSetFromMap(new IdentityHashMap<Connection, Boolean>());
+	private final Map<Statement, String> statementSql = new IdentityHashMap<Statement, String>();
+	private final Map<String, ParameterTypes> parameterTypes = new ConcurrentHashMap<String, ParameterTypes>();
+	// tables written per connection while autocommit is off, invalidated again after the commit
+	private final Map<Connection, Set<String>> pendingWrites = new WeakHashMap<Connection, Set<String>>();
+
+	// a lock instead of monitors, so virtual threads never pin their carrier in here
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final AtomicLong statementCacheHits = new AtomicLong();
+	private final AtomicLong statementCacheMisses = new AtomicLong();
+	private final AtomicLong statementCacheEvictions = new AtomicLong();
+
+	private volatile ResultCache resultCache = null;
+	private volatile JBAO.IdentityCache identityCache = null;
+	private volatile SchemaCache schemaCache = null;
+	private volatile boolean typedParameters = false;
+
+	public JdaoQueryRunner()
+	{
+		super();
+	}
+
+	public JdaoQueryRunner(boolean pmdKnownBroken)
+	{
+		super(pmdKnownBroken);
+	}
+
+	public JdaoQueryRunner(DataSource ds)
+	{
+		super(ds);
+	}
+
+	public JdaoQueryRunner(DataSource ds, boolean pmdKnownBroken)
+	{
+		super(ds, pmdKnownBroken);
+	}
+
+	public JdaoQueryRunner(boolean pmdKnownBroken, int statementCacheSize)
+	{
+		super(pmdKnownBroken);
+		this.statementCacheSize = statementCacheSize;
+	}
+
+	public JdaoQueryRunner(DataSource ds, boolean pmdKnownBroken, int statementCacheSize)
+	{
+		super(ds, pmdKnownBroken);
+		this.statementCacheSize = statementCacheSize;
+	}
+
+	public int getStatementCacheSize()
+	{
+		return statementCacheSize;
+	}
+
+	/**
+	 * sets the maximum number of cached statements per connection, 0 disables the cache.
+	 *
+	 */
+	public void setStatementCacheSize(int statementCacheSize)
+	{
+		this.statementCacheSize = statementCacheSize;
+		if(statementCacheSize<=0)
+		{
+			this.clearStatementCache();
+		}
+	}
+
+	public long getStatementCacheHits()
+	{
+		return statementCacheHits.get();
+	}
+
+	public long getStatementCacheMisses()
+	{
+		return statementCacheMisses.get();
+	}
+
+	public long getStatementCacheEvictions()
+	{
+		return statementCacheEvictions.get();
+	}
+
+	public ResultCache getResultCache()
+	{
+		return resultCache;
+	}
+
+	/**
+	 * sets the cache for query results, null disables it. the cache may be shared by several runners.
+	 *
+	 */
+	public void setResultCache(ResultCache resultCache)
+	{
+		this.resultCache = resultCache;
+	}
+
+	public JBAO.IdentityCache getIdentityCache()
+	{
+		return identityCache;
+	}
+
+	/**
+	 * sets the cache for beans loaded by JBAO.findById, null disables it. the cache may be shared by several runners.
+	 *
+	 */
+	public void setIdentityCache(JBAO.IdentityCache identityCache)
+	{
+		this.identityCache = identityCache;
+	}
+
+	public SchemaCache getSchemaCache()
+	{
+		return schemaCache;
+	}
+
+	/**
+	 * sets the cache for table metadata, null disables it.
+	 *
+	 */
+	public void setSchemaCache(SchemaCache schemaCache)
+	{
+		this.schemaCache = schemaCache;
+	}
+
+	public boolean isTypedParameters()
+	{
+		return typedParameters;
+	}
+
+	/**
+	 * binds parameters with typed setters from cached column types instead of setObject.
+	 *
+	 */
+	public void setTypedParameters(boolean typedParameters)
+	{
+		this.typedParameters = typedParameters;
+		if(!typedParameters)
+		{
+			this.parameterTypes.clear();
+		}
+	}
+
+	void invalidate(String sql)
+	{
+		this.invalidate(null, sql);
+	}
+
+	/**
+	 * drops cached results and beans of the table written by sql, or everything if the table is unknown (ie. ddl).
+	 * if conn is in a transaction the table is remembered for afterCommit.
+	 *
+	 */
+	void invalidate(Connection conn, String sql)
+	{
+		ResultCache cache = this.resultCache;
+		JBAO.IdentityCache beans = this.identityCache;
+		SchemaCache schema = this.schemaCache;
+		if(cache==null && beans==null && schema==null && !this.typedParameters)
+		{
+			return;
+		}
+		String table = ResultCache.writeTable(sql);
+		this.recordWrite(conn, table==null ? ResultCache.ANY_TABLE : table);
+		if(table!=null)
+		{
+			this.invalidateTable(table);
+			return;
+		}
+		this.clearCaches();
+	}
+
+	void clearCaches()
+	{
+		ResultCache cache = this.resultCache;
+		if(cache!=null)
+		{
+			cache.clear();
+		}
+		JBAO.IdentityCache beans = this.identityCache;
+		if(beans!=null)
+		{
+			beans.clear();
+		}
+		SchemaCache schema = this.schemaCache;
+		if(schema!=null)
+		{
+			schema.clear();
+		}
+		this.parameterTypes.clear();
+	}
+
+	/**
+	 * drops cached results and beans of the given table, remembering it for afterCommit if conn is in a transaction.
+	 *
+	 */
+	public void invalidateTable(Connection conn, String table)
+	{
+		this.recordWrite(conn, table);
+		this.invalidateTable(table);
+	}
+
+	void recordWrite(Connection conn, String table)
+	{
+		if(conn==null || (this.resultCache==null && this.identityCache==null && this.schemaCache==null))
+		{
+			return;
+		}
+		try
+		{
+			if(conn.getAutoCommit())
+			{
+				return;
+			}
+		}
+		catch(SQLException xe)
+		{
+			// closed connection, nothing left to commit
+			return;
+		}
+		lock.lock();
+		try
+		{
+			Set<String> tables = pendingWrites.get(conn);
+			if(tables==null)
+			{
+				tables = new HashSet<String>();
+				pendingWrites.put(conn, tables);
+			}
+			tables.add(table);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * invalidates the tables written on conn since its last commit again, to be called after conn.commit().
+	 * <p>
+	 * readers on other connections still see the old rows until the commit and may cache them,
+	 * the invalidation when the write ran does not cover those.
+	 *
+	 */
+	public void afterCommit(Connection conn)
+	{
+		Set<String> tables;
+		lock.lock();
+		try
+		{
+			tables = pendingWrites.remove(conn);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		if(tables==null)
+		{
+			return;
+		}
+		if(tables.contains(ResultCache.ANY_TABLE))
+		{
+			this.clearCaches();
+			return;
+		}
+		for(String table : tables)
+		{
+			this.invalidateTable(table);
+		}
+	}
+
+	/**
+	 * forgets the tables written on conn since its last commit, to be called after conn.rollback().
+	 *
+	 */
+	public void afterRollback(Connection conn)
+	{
+		lock.lock();
+		try
+		{
+			pendingWrites.remove(conn);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * drops cached results and beans of the given table.
+	 *
+	 */
+	public void invalidateTable(String table)
+	{
+		ResultCache cache = this.resultCache;
+		if(cache!=null)
+		{
+			cache.invalidateTable(table);
+		}
+		JBAO.IdentityCache beans = this.identityCache;
+		if(beans!=null)
+		{
+			beans.invalidateTable(table);
+		}
+	}
+
+	@Override
+	public int[] batch(Connection conn, String sql, Object[][] params) throws SQLException
+	{
+		try
+		{
+			return super.batch(conn, sql, params);
+		}
+		finally
+		{
+			this.invalidate(conn, sql);
+		}
+	}
+
+	@Override
+	public int[] batch(String sql, Object[][] params) throws SQLException
+	{
+		try
+		{
+			return super.batch(sql, params);
+		}
+		finally
+		{
+			this.invalidate(sql);
+		}
+	}
+
+	@Override
+	public int update(Connection conn, String sql) throws SQLException
+	{
+		try
+		{
+			return super.update(conn, sql);
+		}
+		finally
+		{
+			this.invalidate(conn, sql);
+		}
+	}
+
+	@Override
+	public int update(Connection conn, String sql, Object param) throws SQLException
+	{
+		try
+		{
+			return super.update(conn, sql, param);
+		}
+		finally
+		{
+			this.invalidate(conn, sql);
+		}
+	}
+
+	@Override
+	public int update(Connection conn, String sql, Object... params) throws SQLException
+	{
+		try
+		{
+			return super.update(conn, sql, params);
+		}
+		finally
+		{
+			this.invalidate(conn, sql);
+		}
+	}
+
+	@Override
+	public int update(String sql) throws SQLException
+	{
+		try
+		{
+			return super.update(sql);
+		}
+		finally
+		{
+			this.invalidate(sql);
+		}
+	}
+
+	@Override
+	public int update(String sql, Object param) throws SQLException
+	{
+		try
+		{
+			return super.update(sql, param);
+		}
+		finally
+		{
+			this.invalidate(sql);
+		}
+	}
+
+	@Override
+	public int update(String sql, Object... params) throws SQLException
+	{
+		try
+		{
+			return super.update(sql, params);
+		}
+		finally
+		{
+			this.invalidate(sql);
+		}
+	}
+
+	@Override
+	public <T> T insert(String sql, ResultSetHandler<T> rsh) throws SQLException
+	{
+		try
+		{
+			return super.insert(sql, rsh);
+		}
+		finally
+		{
+			this.invalidate(sql);
+		}
+	}
+
+	@Override
+	public <T> T insert(String sql, ResultSetHandler<T> rsh, Object... params) throws SQLException
+	{
+		try
+		{
+			return super.insert(sql, rsh, params);
+		}
+		finally
+		{
+			this.invalidate(sql);
+		}
+	}
+
+	@Override
+	public <T> T insert(Connection conn, String sql, ResultSetHandler<T> rsh) throws SQLException
+	{
+		try
+		{
+			return super.insert(conn, sql, rsh);
+		}
+		finally
+		{
+			this.invalidate(conn, sql);
+		}
+	}
+
+	@Override
+	public <T> T insert(Connection conn, String sql, ResultSetHandler<T> rsh, Object... params) throws SQLException
+	{
+		try
+		{
+			return super.insert(conn, sql, rsh, params);
+		}
+		finally
+		{
+			this.invalidate(conn, sql);
+		}
+	}
+
+	@Override
+	public <T> T insertBatch(String sql, ResultSetHandler<T> rsh, Object[][] params) throws SQLException
+	{
+		try
+		{
+			return super.insertBatch(sql, rsh, params);
+		}
+		finally
+		{
+			this.invalidate(sql);
+		}
+	}
+
+	@Override
+	public <T> T insertBatch(Connection conn, String sql, ResultSetHandler<T> rsh, Object[][] params) throws SQLException
+	{
+		try
+		{
+			return super.insertBatch(conn, sql, rsh, params);
+		}
+		finally
+		{
+			this.invalidate(conn, sql);
+		}
+	}
+
+	@Override
+	protected Connection prepareConnection() throws SQLException
+	{
+		Connection conn = super.prepareConnection();
+		lock.lock();
+		try
+		{
+			transientConnections.add(conn);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		return conn;
+	}
+
+	@Override
+	protected PreparedStatement prepareStatement(Connection conn, String sql) throws SQLException
+	{
+		PreparedStatement stmt = this.prepareCachedStatement(conn, sql);
+		if(this.typedParameters)
+		{
+			lock.lock();
+			try
+			{
+				statementSql.put(stmt, sql);
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+		return stmt;
+	}
+
+	private PreparedStatement prepareCachedStatement(Connection conn, String sql) throws SQLException
+	{
+		if(this.statementCacheSize<=0)
+		{
+			return super.prepareStatement(conn, sql);
+		}
+
+		boolean collision = false;
+		StatementCache cache = null;
+		lock.lock();
+		try
+		{
+			if(!transientConnections.contains(conn))
+			{
+				cache = statementCaches.get(conn);
+				if(cache==null)
+				{
+					cache = new StatementCache(this.statementCacheSize, this.lock, this.statementCacheEvictions);
+					statementCaches.put(conn, cache);
+				}
+
+				CachedStatement cs = cache.get(sql);
+				if(cs!=null && cs.inUse)
+				{
+					// same sql executed while the cached one is still open (ie. nested in a handler)
+					collision = true;
+				}
+				else
+				if(cs!=null)
+				{
+					cs.inUse = true;
+					checkedOut.put(cs.stmt, cs);
+					statementCacheHits.incrementAndGet();
+					return cs.stmt;
+				}
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		if(cache==null)
+		{
+			return super.prepareStatement(conn, sql);
+		}
+
+		statementCacheMisses.incrementAndGet();
+		PreparedStatement stmt = super.prepareStatement(conn, sql);
+		if(collision)
+		{
+			return stmt;
+		}
+
+		List<CachedStatement> evicted;
+		lock.lock();
+		try
+		{
+			CachedStatement cs = new CachedStatement(stmt);
+			cs.inUse = true;
+			CachedStatement previous = cache.put(sql, cs);
+			if(previous!=null)
+			{
+				cache.retire(previous);
+			}
+			checkedOut.put(stmt, cs);
+			evicted = cache.drainEvicted();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		closeEvicted(evicted);
+		return stmt;
+	}
+
+	@Override
+	public void fillStatement(PreparedStatement stmt, Object... params) throws SQLException
+	{
+		String sql = null;
+		if(this.typedParameters && stmt!=null)
+		{
+			lock.lock();
+			try
+			{
+				sql = statementSql.get(stmt);
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+		if(sql==null)
+		{
+			super.fillStatement(stmt, params);
+			return;
+		}
+		this.fillStatement(stmt, sql, params);
+	}
+
+	/**
+	 * fills the statement prepared from sql, with typed setters if typed parameters are on and the types are known.
+	 *
+	 */
+	public void fillStatement(PreparedStatement stmt, String sql, Object... params) throws SQLException
+	{
+		ParameterTypes types = this.typedParameters && params!=null ? this.parameterTypesOf(stmt, sql) : null;
+		if(types==null || types==NO_TYPES)
+		{
+			super.fillStatement(stmt, params);
+			return;
+		}
+		if(types.types.length!=params.length)
+		{
+			throw new SQLException("Wrong number of parameters: expected "+types.types.length+", was given "+params.length);
+		}
+		for(int i = 0; i < params.length; i++)
+		{
+			bindParameter(stmt, i+1, params[i], types.types[i], types.fromSchema);
+		}
+	}
+
+	/**
+	 * resolves parameter types of sql, from the SchemaCache if the statement was built by SqlShapeCache,
+	 * otherwise from ParameterMetaData.
+	 *
+	 */
+	ParameterTypes parameterTypesOf(PreparedStatement stmt, String sql) throws SQLException
+	{
+		ParameterTypes types = this.parameterTypes.get(sql);
+		if(types!=null)
+		{
+			return types;
+		}
+
+		types = NO_TYPES;
+		SqlShapeCache.ParameterShape shape = SqlShapeCache.parameterShapeOf(sql);
+		SchemaCache schema = this.schemaCache;
+		if(shape!=null && schema!=null)
+		{
+			types = this.schemaTypesOf(shape, schema, stmt.getConnection());
+		}
+		if(types==NO_TYPES && !this.isPmdKnownBroken())
+		{
+			types = this.metadataTypesOf(stmt);
+		}
+
+		if(this.parameterTypes.size() >= PARAMETER_TYPE_CACHE_SIZE)
+		{
+			this.parameterTypes.clear();
+		}
+		this.parameterTypes.put(sql, types);
+		return types;
+	}
+
+	ParameterTypes schemaTypesOf(SqlShapeCache.ParameterShape shape, SchemaCache schema, Connection conn) throws SQLException
+	{
+		TableMetadata metadata;
+		try
+		{
+			String[] name = SchemaCache.splitTableName(shape.getTable());
+			metadata = schema.get(shape.getDbType(), conn, this, name[0], name[1]);
+		}
+		catch(SQLException xe)
+		{
+			throw xe;
+		}
+		catch(Exception xe)
+		{
+			throw new SQLException(xe);
+		}
+		if(metadata==null)
+		{
+			return NO_TYPES;
+		}
+		String[] columns = shape.getColumns();
+		int[] types = new int[columns.length];
+		for(int i = 0; i < columns.length; i++)
+		{
+			TableMetadata.Column column = metadata.getColumn(SchemaCache.unquote(columns[i]));
+			types[i] = column==null ? UNKNOWN_TYPE : column.getJdbcType();
+		}
+		return new ParameterTypes(types, true);
+	}
+
+	ParameterTypes metadataTypesOf(PreparedStatement stmt)
+	{
+		try
+		{
+			ParameterMetaData pmd = stmt.getParameterMetaData();
+			int[] types = new int[pmd.getParameterCount()];
+			for(int i = 0; i < types.length; i++)
+			{
+				try
+				{
+					types[i] = pmd.getParameterType(i+1);
+				}
+				catch(SQLException xe)
+				{
+					types[i] = UNKNOWN_TYPE;
+				}
+			}
+			return new ParameterTypes(types, false);
+		}
+		catch(SQLException xe)
+		{
+			// driver without usable parameter metadata
+			JDAO.LOG.debug("no parameter metadata", xe);
+			return NO_TYPES;
+		}
+	}
+
+	/**
+	 * binds value with the setter matching the column type. values of other java types go through setObject,
+	 * unless the type came from the schema and the column is a character column.
+	 *
+	 */
+	static void bindParameter(PreparedStatement stmt, int index, Object value, int type, boolean fromSchema) throws SQLException
+	{
+		if(value==null)
+		{
+			stmt.setNull(index, type==UNKNOWN_TYPE || type==Types.OTHER || type==Types.NULL ? Types.VARCHAR : type);
+			return;
+		}
+		switch(type)
+		{
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+				if(isIntegral(value))
+				{
+					long l = ((Number) value).longValue();
+					if(l>=Integer.MIN_VALUE && l<=Integer.MAX_VALUE)
+					{
+						stmt.setInt(index, (int) l);
+					}
+					else
+					{
+						stmt.setLong(index, l);
+					}
+					return;
+				}
+				break;
+			case Types.BIGINT:
+				if(isIntegral(value))
+				{
+					stmt.setLong(index, ((Number) value).longValue());
+					return;
+				}
+				break;
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+				if(value instanceof BigDecimal)
+				{
+					stmt.setBigDecimal(index, (BigDecimal) value);
+					return;
+				}
+				if(isIntegral(value))
+				{
+					stmt.setLong(index, ((Number) value).longValue());
+					return;
+				}
+				if(value instanceof Double || value instanceof Float)
+				{
+					stmt.setBigDecimal(index, BigDecimal.valueOf(((Number) value).doubleValue()));
+					return;
+				}
+				break;
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+				if(value instanceof Double || value instanceof Float)
+				{
+					stmt.setDouble(index, ((Number) value).doubleValue());
+					return;
+				}
+				break;
+			case Types.CHAR:
+			case Types.VARCHAR:
+			case Types.LONGVARCHAR:
+			case Types.NCHAR:
+			case Types.NVARCHAR:
+			case Types.LONGNVARCHAR:
+				if(value instanceof String)
+				{
+					stmt.setString(index, (String) value);
+					return;
+				}
+				if(fromSchema && (value instanceof Number || value instanceof Character))
+				{
+					// keeps the comparison on the column type, so an index on it stays usable
+					stmt.setString(index, value.toString());
+					return;
+				}
+				if(fromSchema && value instanceof Enum)
+				{
+					stmt.setString(index, ((Enum) value).name());
+					return;
+				}
+				break;
+			case Types.BOOLEAN:
+			case Types.BIT:
+				if(value instanceof Boolean)
+				{
+					stmt.setBoolean(index, (Boolean) value);
+					return;
+				}
+				break;
+			case Types.DATE:
+				if(value instanceof java.sql.Date)
+				{
+					stmt.setDate(index, (java.sql.Date) value);
+					return;
+				}
+				break;
+			case Types.TIME:
+				if(value instanceof Time)
+				{
+					stmt.setTime(index, (Time) value);
+					return;
+				}
+				break;
+			case Types.TIMESTAMP:
+				if(value instanceof Timestamp)
+				{
+					stmt.setTimestamp(index, (Timestamp) value);
+					return;
+				}
+				if(value.getClass()==java.util.Date.class)
+				{
+					stmt.setTimestamp(index, new Timestamp(((java.util.Date) value).getTime()));
+					return;
+				}
+				break;
+			default:
+				break;
+		}
+		stmt.setObject(index, value);
+	}
+
+	static boolean isIntegral(Object value)
+	{
+		return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+				|| (value instanceof BigInteger && ((BigInteger) value).bitLength()<64);
+	}
+
+	static final ParameterTypes NO_TYPES = new ParameterTypes(new int[0], false);
+
+	static class ParameterTypes
+	{
+		final int[] types;
+		final boolean fromSchema;
+
+		ParameterTypes(int[] types, boolean fromSchema)
+		{
+			this.types = types;
+			this.fromSchema = fromSchema;
+		}
+	}
+
+	@Override
+	protected void close(Statement stmt) throws SQLException
+	{
+		if(stmt!=null)
+		{
+			lock.lock();
+			try
+			{
+				statementSql.remove(stmt);
+				CachedStatement cs = checkedOut.remove(stmt);
+				if(cs!=null)
+				{
+					cs.inUse = false;
+					if(!cs.evicted)
+					{
+						cs.stmt.clearParameters();
+						return;
+					}
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+		super.close(stmt);
+	}
+
+	@Override
+	protected void close(Connection conn) throws SQLException
+	{
+		lock.lock();
+		try
+		{
+			transientConnections.remove(conn);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		this.clearStatementCache(conn);
+		super.close(conn);
+	}
+
+	/**
+	 * closes and removes all cached statements of the given connection.
+	 *
+	 */
+	public void clearStatementCache(Connection conn)
+	{
+		StatementCache cache;
+		lock.lock();
+		try
+		{
+			cache = statementCaches.remove(conn);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		if(cache!=null)
+		{
+			closeEvicted(cache.evictAll());
+		}
+	}
+
+	/**
+	 * closes and removes all cached statements of all connections.
+	 *
+	 */
+	public void clearStatementCache()
+	{
+		List<Connection> conns;
+		lock.lock();
+		try
+		{
+			conns = new ArrayList<Connection>(statementCaches.keySet());
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		for(Connection conn : conns)
+		{
+			this.clearStatementCache(conn);
+		}
+	}
+
+	private void closeEvicted(List<CachedStatement> evicted)
+	{
+		for(CachedStatement cs : evicted)
+		{
+			try
+			{
+				cs.stmt.close();
+			}
+			catch(SQLException xe)
+			{
+				JDAO.LOG.debug("error closing cached statement", xe);
+			}
+		}
+	}
+
+	static class CachedStatement
+	{
+		final PreparedStatement stmt;
+		boolean inUse = false;
+		boolean evicted = false;
+
+		CachedStatement(PreparedStatement stmt)
+		{
+			this.stmt = stmt;
+		}
+	}
+
+	static final class StatementCache extends LinkedHashMap<String, CachedStatement>
+	{
+		private static final long serialVersionUID = 1L;
+
+		final int maxSize;
+		final ReentrantLock lock;
+		final AtomicLong evictions;
+		List<CachedStatement> evicted = new ArrayList<CachedStatement>();
+
+		StatementCache(int maxSize, ReentrantLock lock, AtomicLong evictions)
+		{
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+			this.lock = lock;
+			this.evictions = evictions;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest)
+		{
+			if(this.size() > this.maxSize)
+			{
+				this.evictions.incrementAndGet();
+				this.retire(eldest.getValue());
+				return true;
+			}
+			return false;
+		}
+
+		void retire(CachedStatement cs)
+		{
+			cs.evicted = true;
+			if(!cs.inUse)
+			{
+				this.evicted.add(cs);
+			}
+		}
+
+		List<CachedStatement> drainEvicted()
+		{
+			List<CachedStatement> ret = this.evicted;
+			this.evicted = new ArrayList<CachedStatement>();
+			return ret;
+		}
+
+		List<CachedStatement> evictAll()
+		{
+			this.lock.lock();
+			try
+			{
+				for(CachedStatement cs : this.values())
+				{
+					this.retire(cs);
+				}
+				this.clear();
+				return this.drainEvicted();
+			}
+			finally
+			{
+				this.lock.unlock();
+			}
+		}
+	}
+}
@@ -10,9 +10,13 @@ import javax.sql.DataSource;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileReader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.github.terefang.jdao.JDAO.*;
 
@@ -381,6 +385,254 @@ public class JdaoUtils
         }
     }
 
+    /**
+     * maximum number of bind parameters in a single statement, 0 if unknown.
+     *
+     */
+    public static int maxBindParametersPerDbType(int dbType)
+    {
+        switch(dbType)
+        {
+            case DB_TYPE_MYSQL:
+            {
+                return 65535;
+            }
+            case DB_TYPE_POSTGRES:
+            case DB_TYPE_CRATE:
+            case DB_TYPE_H2:
+            case DB_TYPE_DB2:
+            {
+                return 32767;
+            }
+            case DB_TYPE_MSSQL:
+            case DB_TYPE_SYBASE:
+            {
+                return 2000;
+            }
+            case DB_TYPE_ORACLE:
+            {
+                return 65535;
+            }
+            case DB_TYPE_SQLITE:
+            case DB_TYPE_ANSI:
+            default:
+            {
+                return 999;
+            }
+        }
+    }
+
+    /**
+     * maximum number of rows in a multi-row "VALUES (...),(...)" insert, 0 if not supported.
+     *
+     */
+    public static int maxRowsPerInsertPerDbType(int dbType)
+    {
+        switch(dbType)
+        {
+            case DB_TYPE_ORACLE:
+            {
+                return 0;
+            }
+            case DB_TYPE_MSSQL:
+            case DB_TYPE_SYBASE:
+            {
+                return 1000;
+            }
+            case DB_TYPE_SQLITE:
+            {
+                return 500;
+            }
+            case DB_TYPE_ANSI:
+            case DB_TYPE_MYSQL:
+            case DB_TYPE_POSTGRES:
+            case DB_TYPE_DB2:
+            case DB_TYPE_H2:
+            case DB_TYPE_CRATE:
+            default:
+            {
+                return Integer.MAX_VALUE;
+            }
+        }
+    }
+
+    /**
+     * splits the closed key range [min, max] into at most parts ranges of {lower, upper} bounds.
+     * <p>
+     * integral numbers are split as long, BigDecimal as BigDecimal, other numbers as double and dates by their millis (as Timestamp),
+     * an empty list is returned if min or max is null. a range ends where the next one starts,
+     * callers should leave the first range open below and the last one open above.
+     *
+     */
+    public static List<Object[]> partitionRange(Object min, Object max, int parts)
+    {
+        List<Object[]> ret = new ArrayList<Object[]>();
+        if(min==null || max==null)
+        {
+            return ret;
+        }
+        if(parts<1)
+        {
+            parts = 1;
+        }
+
+        if(isIntegral(min) && isIntegral(max))
+        {
+            long lo = ((Number) min).longValue();
+            long hi = ((Number) max).longValue();
+            BigInteger span = BigInteger.valueOf(hi).subtract(BigInteger.valueOf(lo)).add(BigInteger.ONE);
+            if(span.compareTo(BigInteger.valueOf(parts))<0)
+            {
+                parts = span.intValue();
+            }
+            BigInteger step = span.divide(BigInteger.valueOf(parts));
+            long start = lo;
+            for(int i = 0; i < parts; i++)
+            {
+                long end = (i == parts-1) ? hi : BigInteger.valueOf(start).add(step).longValue();
+                ret.add(new Object[] { start, end });
+                start = end;
+            }
+        }
+        else
+        if((min instanceof BigDecimal || max instanceof BigDecimal) && min instanceof Number && max instanceof Number)
+        {
+            BigDecimal lo = toBigDecimal((Number) min);
+            BigDecimal hi = toBigDecimal((Number) max);
+            BigDecimal step = hi.subtract(lo).divide(BigDecimal.valueOf(parts), MathContext.DECIMAL128);
+            if(step.signum()<=0)
+            {
+                parts = 1;
+            }
+            BigDecimal start = lo;
+            for(int i = 0; i < parts; i++)
+            {
+                BigDecimal end = (i == parts-1) ? hi : lo.add(step.multiply(BigDecimal.valueOf(i+1)));
+                ret.add(new Object[] { start, end });
+                start = end;
+            }
+        }
+        else
+        if(min instanceof Number && max instanceof Number)
+        {
+            double lo = ((Number) min).doubleValue();
+            double hi = ((Number) max).doubleValue();
+            double step = (hi-lo)/parts;
+            if(step<=0)
+            {
+                parts = 1;
+            }
+            double start = lo;
+            for(int i = 0; i < parts; i++)
+            {
+                double end = (i == parts-1) ? hi : lo+step*(i+1);
+                ret.add(new Object[] { start, end });
+                start = end;
+            }
+        }
+        else
+        if(min instanceof java.util.Date && max instanceof java.util.Date)
+        {
+            List<Object[]> millis = partitionRange(((java.util.Date) min).getTime(), ((java.util.Date) max).getTime(), parts);
+            for(Object[] r : millis)
+            {
+                ret.add(new Object[] { new java.sql.Timestamp((Long) r[0]), new java.sql.Timestamp((Long) r[1]) });
+            }
+        }
+        else
+        {
+            throw new IllegalArgumentException("cannot partition key of type "+min.getClass().getName());
+        }
+        return ret;
+    }
+
+    static BigDecimal toBigDecimal(Number n)
+    {
+        if(n instanceof BigDecimal)
+        {
+            return (BigDecimal) n;
+        }
+        if(n instanceof BigInteger)
+        {
+            return new BigDecimal((BigInteger) n);
+        }
+        if(isIntegral(n))
+        {
+            return BigDecimal.valueOf(n.longValue());
+        }
+        return BigDecimal.valueOf(n.doubleValue());
+    }
+
+    static boolean isIntegral(Object o)
+    {
+        if(o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte)
+        {
+            return true;
+        }
+        if(o instanceof BigInteger)
+        {
+            return ((BigInteger) o).bitLength() < 64;
+        }
+        if(o instanceof BigDecimal)
+        {
+            BigDecimal d = (BigDecimal) o;
+            return (d.scale()<=0 || d.stripTrailingZeros().scale()<=0) && d.toBigInteger().bitLength() < 64;
+        }
+        return false;
+    }
+
+    /**
+     * fetch size to use for large (streaming) results.
+     * <p>
+     * mysql only streams with Integer.MIN_VALUE on a forward-only, read-only statement.
+     * sqlite steps the result lazily anyway. mssql cursors are chosen by connection properties,
+     * not the fetch size: the microsoft driver streams with its default responseBuffering=adaptive,
+     * jtds needs useCursors=true (selectMethod=cursor on the old microsoft driver) in the url.
+     *
+     */
+    public static int cursorFetchSizePerDbType(int dbType, int fetchSize)
+    {
+        switch(dbType)
+        {
+            case DB_TYPE_MYSQL:
+            {
+                return Integer.MIN_VALUE;
+            }
+            case DB_TYPE_ANSI:
+            case DB_TYPE_ORACLE:
+            case DB_TYPE_POSTGRES:
+            case DB_TYPE_MSSQL:
+            case DB_TYPE_SYBASE:
+            case DB_TYPE_DB2:
+            case DB_TYPE_H2:
+            case DB_TYPE_SQLITE:
+            case DB_TYPE_CRATE:
+            default:
+            {
+                return fetchSize;
+            }
+        }
+    }
+
+    /**
+     * true if the driver only uses a server-side cursor inside a transaction (autocommit off).
+     *
+     */
+    public static boolean cursorRequiresTransactionPerDbType(int dbType)
+    {
+        switch(dbType)
+        {
+            case DB_TYPE_POSTGRES:
+            {
+                return true;
+            }
+            default:
+            {
+                return false;
+            }
+        }
+    }
+
     public static String existsOpPerDbType(int dbType, String arg1, boolean invert)
     {
         switch(dbType)
@@ -807,60 +1059,244 @@ public class JdaoUtils
         return(sb.toString());
     }
 
+    /**
+     * converts a value as returned by jdbc (ie. a generated key) to the requested class.
+     * primitive classes are converted to their wrapper.
+     *
+     */
+    public static <T> T convertTo(Object value, Class<T> clazz)
+    {
+        Class<?> target = clazz==null ? null : wrapperOf(clazz);
+        if(value==null || target==null || target.isInstance(value))
+        {
+            return (T) value;
+        }
+        if(value instanceof Number)
+        {
+            Number n = (Number) value;
+            if(target==Long.class)
+            {
+                return (T) Long.valueOf(n.longValue());
+            }
+            if(target==Integer.class)
+            {
+                return (T) Integer.valueOf(n.intValue());
+            }
+            if(target==Short.class)
+            {
+                return (T) Short.valueOf(n.shortValue());
+            }
+            if(target==Byte.class)
+            {
+                return (T) Byte.valueOf(n.byteValue());
+            }
+            if(target==Double.class)
+            {
+                return (T) Double.valueOf(n.doubleValue());
+            }
+            if(target==Float.class)
+            {
+                return (T) Float.valueOf(n.floatValue());
+            }
+            if(target==BigDecimal.class)
+            {
+                return (T) new BigDecimal(n.toString());
+            }
+            if(target==BigInteger.class)
+            {
+                return (T) new BigDecimal(n.toString()).toBigInteger();
+            }
+        }
+        if(target==String.class)
+        {
+            return (T) value.toString();
+        }
+        if(value instanceof String)
+        {
+            String s = ((String) value).trim();
+            if(target==Long.class)
+            {
+                return (T) Long.valueOf(s);
+            }
+            if(target==Integer.class)
+            {
+                return (T) Integer.valueOf(s);
+            }
+            if(target==Short.class)
+            {
+                return (T) Short.valueOf(s);
+            }
+            if(target==Byte.class)
+            {
+                return (T) Byte.valueOf(s);
+            }
+            if(target==Double.class)
+            {
+                return (T) Double.valueOf(s);
+            }
+            if(target==Float.class)
+            {
+                return (T) Float.valueOf(s);
+            }
+            if(target==BigDecimal.class)
+            {
+                return (T) new BigDecimal(s);
+            }
+            if(target==BigInteger.class)
+            {
+                return (T) new BigInteger(s);
+            }
+            if(target==Boolean.class)
+            {
+                return (T) Boolean.valueOf(s);
+            }
+            if(target==UUID.class)
+            {
+                return (T) UUID.fromString(s);
+            }
+        }
+        return (T) target.cast(value);
+    }
+
+    static Class<?> wrapperOf(Class<?> clazz)
+    {
+        if(!clazz.isPrimitive())
+        {
+            return clazz;
+        }
+        if(clazz==Long.TYPE) return Long.class;
+        if(clazz==Integer.TYPE) return Integer.class;
+        if(clazz==Short.TYPE) return Short.class;
+        if(clazz==Byte.TYPE) return Byte.class;
+        if(clazz==Double.TYPE) return Double.class;
+        if(clazz==Float.TYPE) return Float.class;
+        if(clazz==Boolean.TYPE) return Boolean.class;
+        if(clazz==Character.TYPE) return Character.class;
+        return Void.class;
+    }
+
     public static String preparseParameters(int dbType, String format, List param, Map vars)
     {
-        String prefix = "?{";
-        String suffix = "}";
-        StringBuilder sb = new StringBuilder();
+        NamedParameterTemplate template = compileParameters(format);
+        Collections.addAll(param, template.bind(vars));
+        return template.getSql();
+    }
+
+    public static final int PARAMETER_TEMPLATE_CACHE_SIZE = 4096;
 
-        int offset = 0;
-        int found = -1;
-        while((found = format.indexOf(prefix, offset)) >= offset)
+    static final Map<String, NamedParameterTemplate> parameterTemplateCache = new ConcurrentHashMap<String, NamedParameterTemplate>();
+
+    /**
+     * parse a sql string with "?{field-name}" named parameters into positional sql and a list of names.
+     * <p>
+     * compiled templates are cached by sql text.
+     *
+     */
+    public static NamedParameterTemplate compileParameters(String format)
+    {
+        NamedParameterTemplate template = parameterTemplateCache.get(format);
+        if(template==null)
         {
-            sb.append(format.substring(offset, found));
+            template = NamedParameterTemplate.parse(format);
+            if(parameterTemplateCache.size() >= PARAMETER_TEMPLATE_CACHE_SIZE)
+            {
+                parameterTemplateCache.clear();
+            }
+            parameterTemplateCache.put(format, template);
+        }
+        return template;
+    }
 
-            if(suffix.length()==0)
+    public static class NamedParameterTemplate
+    {
+        private final String sql;
+        private final String[] names;
+        private final String[] lowerNames;
+        private final String[] upperNames;
+
+        private NamedParameterTemplate(String sql, List<String> names)
+        {
+            this.sql = sql;
+            this.names = names.toArray(new String[names.size()]);
+            this.lowerNames = new String[this.names.length];
+            this.upperNames = new String[this.names.length];
+            for(int i = 0; i < this.names.length; i++)
             {
-                offset = found+prefix.length()+1;
+                this.lowerNames[i] = this.names[i].toLowerCase();
+                this.upperNames[i] = this.names[i].toUpperCase();
             }
-            else
+        }
+
+        static NamedParameterTemplate parse(String format)
+        {
+            String prefix = "?{";
+            String suffix = "}";
+            StringBuilder sb = new StringBuilder();
+            List<String> names = new ArrayList<String>();
+
+            int offset = 0;
+            int found = -1;
+            while((found = format.indexOf(prefix, offset)) >= offset)
             {
+                sb.append(format, offset, found);
                 offset = format.indexOf(suffix, found+prefix.length());
+
+                if(offset > found)
+                {
+                    names.add(format.substring(found+prefix.length(), offset));
+                    offset += suffix.length();
+                    sb.append("?");
+                }
+                else
+                {
+                    sb.append(prefix);
+                    offset = found+prefix.length();
+                }
             }
+            sb.append(format.substring(offset));
 
-            if(offset > found)
-            {
-                String tag = format.substring(found+prefix.length(), offset);
-                offset += suffix.length();
+            return new NamedParameterTemplate(sb.toString(), names);
+        }
+
+        public String getSql()
+        {
+            return sql;
+        }
 
-                sb.append("?");
-                if(vars.containsKey(tag))
+        public String[] getParameterNames()
+        {
+            return names.clone();
+        }
+
+        /**
+         * build the positional arguments from the given map, names are looked up as-is, lower- and upper-case.
+         *
+         */
+        public Object[] bind(Map vars)
+        {
+            Object[] args = new Object[this.names.length];
+            for(int i = 0; i < args.length; i++)
+            {
+                if(vars.containsKey(this.names[i]))
                 {
-                    param.add(vars.get(tag));
+                    args[i] = vars.get(this.names[i]);
                 }
                 else
-                if(vars.containsKey(tag.toLowerCase()))
+                if(vars.containsKey(this.lowerNames[i]))
                 {
-                    param.add(vars.get(tag.toLowerCase()));
+                    args[i] = vars.get(this.lowerNames[i]);
                 }
                 else
-                if(vars.containsKey(tag.toUpperCase()))
+                if(vars.containsKey(this.upperNames[i]))
                 {
-                    param.add(vars.get(tag.toUpperCase()));
+                    args[i] = vars.get(this.upperNames[i]);
                 }
                 else
                 {
-                    param.add("{"+tag.toUpperCase()+"}");
+                    args[i] = "{"+this.upperNames[i]+"}";
                 }
             }
-            else
-            {
-                sb.append(prefix);
-                offset = found+prefix.length();
-            }
+            return args;
         }
-        sb.append(format.substring(offset));
-
-        return sb.toString();
     }
 }
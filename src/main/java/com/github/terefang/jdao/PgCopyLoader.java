@@ -0,0 +1,833 @@
+/*
+ * Copyright (c) 2017. terefang@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.terefang.jdao;
+
+import org.apache.commons.dbutils.QueryRunner;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * bulk loader for postgresql, streams rows through COPY table (cols) FROM STDIN with the driver's CopyManager.
+ * <p>
+ * rows are encoded in text or binary format into a buffer which is sent to the server whenever it fills up,
+ * so memory stays flat for any number of rows. columns are taken from the first row unless set, keys missing
+ * in a row are copied as null.
+ * <p>
+ * with onDuplicateKeyUpdate the rows are copied into a temp table first and merged with
+ * INSERT .. SELECT .. ON CONFLICT on the primary key, or on the columns not updated (as in JDAO.insert) if the
+ * key is not copied. the rows of one load must not repeat a key then.
+ *
+ */
+public class PgCopyLoader
+{
+	public static final int FORMAT_TEXT = 0;
+	public static final int FORMAT_BINARY = 1;
+
+	public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+	static final byte[] BINARY_HEADER = { 'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+	// 2000-01-01 in unix time
+	static final long PG_EPOCH_SECONDS = 946684800L;
+	static final long PG_EPOCH_DAYS = 10957L;
+
+	static final AtomicLong TEMP_TABLE_SEQ = new AtomicLong();
+
+	private final Connection conn;
+	private final QueryRunner queryRunner;
+	private final String table;
+
+	private int format = FORMAT_TEXT;
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
+	private List<String> columns = null;
+	private boolean onDuplicateKeyUpdate = false;
+	private Collection updateFields = null;
+
+	public PgCopyLoader(Connection conn, QueryRunner queryRunner, String table)
+	{
+		this.conn = conn;
+		this.queryRunner = queryRunner;
+		this.table = table;
+	}
+
+	public int getFormat()
+	{
+		return format;
+	}
+
+	/**
+	 * FORMAT_TEXT (default) or FORMAT_BINARY. binary saves parsing on the server, but needs the column types
+	 * and supports only the common ones (bool, integers, floats, numeric, text, bytea, date, timestamp[tz], uuid, json[b]).
+	 *
+	 */
+	public void setFormat(int format)
+	{
+		this.format = format;
+	}
+
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+
+	/**
+	 * bytes buffered before they are sent to the server.
+	 *
+	 */
+	public void setBufferSize(int bufferSize)
+	{
+		this.bufferSize = bufferSize;
+	}
+
+	public List<String> getColumns()
+	{
+		return columns;
+	}
+
+	/**
+	 * columns to copy, null takes the keys of the first row.
+	 *
+	 */
+	public void setColumns(Collection<String> columns)
+	{
+		this.columns = columns==null ? null : new ArrayList<String>(columns);
+	}
+
+	public void setOnDuplicateKeyUpdate(boolean onDuplicateKeyUpdate, Collection updateFields)
+	{
+		this.onDuplicateKeyUpdate = onDuplicateKeyUpdate;
+		this.updateFields = updateFields;
+	}
+
+	public long load(List<? extends Map> rows) throws Exception
+	{
+		return this.load(rows.iterator());
+	}
+
+	public long load(Stream<? extends Map> rows) throws Exception
+	{
+		try
+		{
+			return this.load(rows.iterator());
+		}
+		finally
+		{
+			rows.close();
+		}
+	}
+
+	/**
+	 * copies the rows and returns the number of rows copied, or inserted and updated when merging.
+	 *
+	 */
+	public long load(Iterator<? extends Map> rows) throws Exception
+	{
+		if(!rows.hasNext())
+		{
+			return 0L;
+		}
+		Map first = rows.next();
+		List<String> cols = this.columns;
+		if(cols==null)
+		{
+			cols = new ArrayList<String>();
+			for(Object key : first.keySet())
+			{
+				cols.add(String.valueOf(key));
+			}
+		}
+
+		Connection _conn = JDAO.openConnection(this.conn, this.queryRunner);
+		try
+		{
+			TableMetadata metadata = null;
+			if(this.format==FORMAT_BINARY || this.onDuplicateKeyUpdate)
+			{
+				metadata = this.metadataOf(_conn);
+			}
+			if(!this.onDuplicateKeyUpdate)
+			{
+				return this.copy(_conn, this.table, cols, metadata, first, rows);
+			}
+			return this.merge(_conn, cols, metadata, first, rows);
+		}
+		finally
+		{
+			JDAO.releaseConnection(this.conn, _conn);
+			JDAO.invalidateCaches(this.queryRunner, this.conn, this.table);
+		}
+	}
+
+	TableMetadata metadataOf(Connection _conn) throws Exception
+	{
+		TableMetadata metadata = JDAO.cachedMetadataOf(JDAO.DB_TYPE_POSTGRES, _conn, this.queryRunner, this.table);
+		if(metadata==null)
+		{
+			String[] name = SchemaCache.splitTableName(this.table);
+			metadata = TableMetadata.load(JDAO.DB_TYPE_POSTGRES, _conn, name[0], name[1]);
+		}
+		if(metadata==null)
+		{
+			throw new SQLException("table not found: "+this.table);
+		}
+		return metadata;
+	}
+
+	long merge(Connection _conn, List<String> cols, TableMetadata metadata, Map first, Iterator<? extends Map> rows) throws Exception
+	{
+		List<String> primaryKey = metadata.getPrimaryKey();
+		Collection _updateFields = JDAO.withoutKeys(this.updateFields==null ? cols : this.updateFields, primaryKey);
+		List<String> target = new ArrayList<String>();
+		if(!primaryKey.isEmpty() && containsIgnoreCase(cols, primaryKey))
+		{
+			target.addAll(primaryKey);
+		}
+		else
+		{
+			for(String col : cols)
+			{
+				if(!containsIgnoreCase(_updateFields, col))
+				{
+					target.add(col);
+				}
+			}
+		}
+		if(target.isEmpty())
+		{
+			throw new IllegalArgumentException("no conflict columns left, all columns are updated");
+		}
+
+		String tempTable = "jdao_copy_"+TEMP_TABLE_SEQ.incrementAndGet();
+		String colList = join(cols);
+		Statement stmt = _conn.createStatement();
+		try
+		{
+			stmt.execute("CREATE TEMP TABLE "+tempTable+" AS SELECT "+colList+" FROM "+this.table+" WITH NO DATA");
+			boolean merged = false;
+			try
+			{
+				this.copy(_conn, tempTable, cols, metadata, first, rows);
+
+				StringBuilder qq = new StringBuilder();
+				qq.append("INSERT INTO "+this.table+" ( "+colList+" ) SELECT "+colList+" FROM "+tempTable);
+				qq.append(" ON CONFLICT ( "+join(target)+" ) ");
+				if(_updateFields.isEmpty())
+				{
+					qq.append("DO NOTHING");
+				}
+				else
+				{
+					qq.append("DO UPDATE SET ");
+					boolean ff = true;
+					for(Object field : _updateFields)
+					{
+						if(!ff) qq.append(", ");
+						qq.append(field+"=EXCLUDED."+field);
+						ff = false;
+					}
+				}
+				long ret = stmt.executeUpdate(qq.toString());
+				merged = true;
+				return ret;
+			}
+			finally
+			{
+				try
+				{
+					stmt.execute("DROP TABLE IF EXISTS "+tempTable);
+				}
+				catch(SQLException xe)
+				{
+					// fails in an aborted transaction, the original error matters then
+					if(merged)
+					{
+						throw xe;
+					}
+					JDAO.LOG.debug("error dropping "+tempTable, xe);
+				}
+			}
+		}
+		finally
+		{
+			stmt.close();
+		}
+	}
+
+	long copy(Connection _conn, String into, List<String> cols, TableMetadata metadata, Map first, Iterator<? extends Map> rows) throws Exception
+	{
+		TableMetadata.Column[] types = null;
+		if(this.format==FORMAT_BINARY)
+		{
+			types = new TableMetadata.Column[cols.size()];
+			for(int i = 0; i < types.length; i++)
+			{
+				types[i] = metadata.getColumn(cols.get(i));
+				if(types[i]==null)
+				{
+					throw new IllegalArgumentException("unknown column: "+cols.get(i));
+				}
+			}
+		}
+
+		String sql = "COPY "+into+" ( "+join(cols)+" ) FROM STDIN"+(this.format==FORMAT_BINARY ? " (FORMAT BINARY)" : "");
+		CopyIn copyIn = pgConnectionOf(_conn).getCopyAPI().copyIn(sql);
+		try
+		{
+			int limit = this.bufferSize<=0 ? DEFAULT_BUFFER_SIZE : this.bufferSize;
+			CopyBuffer buffer = new CopyBuffer(limit+1024);
+			if(types!=null)
+			{
+				buffer.write(BINARY_HEADER);
+			}
+			Map row = first;
+			while(row!=null)
+			{
+				if(types!=null)
+				{
+					writeBinaryRow(buffer, cols, types, row);
+				}
+				else
+				{
+					writeTextRow(buffer, cols, row);
+				}
+				if(buffer.size()>=limit)
+				{
+					buffer.sendTo(copyIn);
+				}
+				row = rows.hasNext() ? rows.next() : null;
+			}
+			if(types!=null)
+			{
+				buffer.writeShort(-1);
+			}
+			buffer.sendTo(copyIn);
+			return copyIn.endCopy();
+		}
+		finally
+		{
+			if(copyIn.isActive())
+			{
+				copyIn.cancelCopy();
+			}
+		}
+	}
+
+	/**
+	 * returns the driver connection, unwrapping pooled connections.
+	 *
+	 */
+	static PGConnection pgConnectionOf(Connection _conn) throws SQLException
+	{
+		if(_conn instanceof PGConnection)
+		{
+			return (PGConnection) _conn;
+		}
+		if(_conn.isWrapperFor(PGConnection.class))
+		{
+			return _conn.unwrap(PGConnection.class);
+		}
+		if(_conn instanceof org.apache.commons.dbcp.DelegatingConnection)
+		{
+			Connection inner = ((org.apache.commons.dbcp.DelegatingConnection) _conn).getInnermostDelegate();
+			if(inner instanceof PGConnection)
+			{
+				return (PGConnection) inner;
+			}
+		}
+		throw new SQLException("not a postgresql connection: "+_conn.getClass().getName());
+	}
+
+	static boolean containsIgnoreCase(List<String> cols, List<String> keys)
+	{
+		for(String key : keys)
+		{
+			if(!containsIgnoreCase(cols, key))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static boolean containsIgnoreCase(Collection<?> cols, String key)
+	{
+		for(Object col : cols)
+		{
+			if(String.valueOf(col).equalsIgnoreCase(key))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static String join(Collection<?> cols)
+	{
+		StringBuilder sb = new StringBuilder();
+		for(Object col : cols)
+		{
+			if(sb.length()>0) sb.append(",");
+			sb.append(col);
+		}
+		return sb.toString();
+	}
+
+	static void writeTextRow(CopyBuffer buffer, List<String> cols, Map row)
+	{
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < cols.size(); i++)
+		{
+			if(i>0)
+			{
+				sb.append('\t');
+			}
+			appendText(sb, row.get(cols.get(i)));
+		}
+		sb.append('\n');
+		buffer.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * appends the value in COPY text format, backslash-escaped, null as \N.
+	 *
+	 */
+	static void appendText(StringBuilder sb, Object value)
+	{
+		if(value==null)
+		{
+			sb.append("\\N");
+			return;
+		}
+		if(value instanceof Boolean)
+		{
+			sb.append(((Boolean) value) ? 't' : 'f');
+			return;
+		}
+		if(value instanceof byte[])
+		{
+			// bytea hex format, its backslash escaped for copy
+			sb.append("\\\\x");
+			for(byte b : (byte[]) value)
+			{
+				sb.append(Character.forDigit((b>>4)&0xf, 16)).append(Character.forDigit(b&0xf, 16));
+			}
+			return;
+		}
+		String s;
+		if(value instanceof java.util.Date && !(value instanceof java.sql.Date || value instanceof Time || value instanceof Timestamp))
+		{
+			s = new Timestamp(((java.util.Date) value).getTime()).toString();
+		}
+		else
+		if(value instanceof BigDecimal)
+		{
+			s = ((BigDecimal) value).toPlainString();
+		}
+		else
+		{
+			s = value.toString();
+		}
+		for(int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			switch(c)
+			{
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default: sb.append(c); break;
+			}
+		}
+	}
+
+	static void writeBinaryRow(CopyBuffer buffer, List<String> cols, TableMetadata.Column[] types, Map row)
+	{
+		buffer.writeShort(cols.size());
+		for(int i = 0; i < types.length; i++)
+		{
+			Object value = row.get(cols.get(i));
+			if(value==null)
+			{
+				buffer.writeInt(-1);
+				continue;
+			}
+			writeBinaryValue(buffer, types[i], value);
+		}
+	}
+
+	/**
+	 * writes length and value in the binary send format of the column's postgresql type.
+	 *
+	 */
+	static void writeBinaryValue(CopyBuffer buffer, TableMetadata.Column column, Object value)
+	{
+		String type = binaryTypeOf(column.getTypeName());
+		if("bool".equals(type))
+		{
+			buffer.writeInt(1);
+			buffer.write(toBoolean(value) ? 1 : 0);
+		}
+		else
+		if("int2".equals(type))
+		{
+			buffer.writeInt(2);
+			buffer.writeShort((int) toLong(value, Short.MIN_VALUE, Short.MAX_VALUE));
+		}
+		else
+		if("int4".equals(type))
+		{
+			buffer.writeInt(4);
+			buffer.writeInt((int) toLong(value, Integer.MIN_VALUE, Integer.MAX_VALUE));
+		}
+		else
+		if("int8".equals(type))
+		{
+			buffer.writeInt(8);
+			buffer.writeLong(toLong(value, Long.MIN_VALUE, Long.MAX_VALUE));
+		}
+		else
+		if("float4".equals(type))
+		{
+			buffer.writeInt(4);
+			buffer.writeInt(Float.floatToIntBits(value instanceof Number ? ((Number) value).floatValue() : Float.parseFloat(value.toString())));
+		}
+		else
+		if("float8".equals(type))
+		{
+			buffer.writeInt(8);
+			buffer.writeLong(Double.doubleToLongBits(value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString())));
+		}
+		else
+		if("numeric".equals(type))
+		{
+			writeNumeric(buffer, toBigDecimal(value));
+		}
+		else
+		if("varchar".equals(type) || "text".equals(type) || "bpchar".equals(type) || "name".equals(type) || "json".equals(type))
+		{
+			byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+			buffer.writeInt(bytes.length);
+			buffer.write(bytes);
+		}
+		else
+		if("jsonb".equals(type))
+		{
+			byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+			buffer.writeInt(bytes.length+1);
+			// jsonb format version
+			buffer.write(1);
+			buffer.write(bytes);
+		}
+		else
+		if("bytea".equals(type) && value instanceof byte[])
+		{
+			byte[] bytes = (byte[]) value;
+			buffer.writeInt(bytes.length);
+			buffer.write(bytes);
+		}
+		else
+		if("date".equals(type))
+		{
+			buffer.writeInt(4);
+			buffer.writeInt((int) (toLocalDate(value).toEpochDay()-PG_EPOCH_DAYS));
+		}
+		else
+		if("timestamp".equals(type))
+		{
+			LocalDateTime ldt = toLocalDateTime(value);
+			buffer.writeInt(8);
+			buffer.writeLong((ldt.toEpochSecond(ZoneOffset.UTC)-PG_EPOCH_SECONDS)*1000000L+ldt.getNano()/1000);
+		}
+		else
+		if("timestamptz".equals(type))
+		{
+			Instant instant = toInstant(value);
+			buffer.writeInt(8);
+			buffer.writeLong((instant.getEpochSecond()-PG_EPOCH_SECONDS)*1000000L+instant.getNano()/1000);
+		}
+		else
+		if("uuid".equals(type))
+		{
+			UUID uuid = value instanceof UUID ? (UUID) value : UUID.fromString(value.toString());
+			buffer.writeInt(16);
+			buffer.writeLong(uuid.getMostSignificantBits());
+			buffer.writeLong(uuid.getLeastSignificantBits());
+		}
+		else
+		{
+			throw new IllegalArgumentException("column type not supported in binary copy, use text format: "+column);
+		}
+	}
+
+	/**
+	 * returns the type name whose send format is used, pgjdbc reports columns with a sequence default as serial types.
+	 *
+	 */
+	static String binaryTypeOf(String typeName)
+	{
+		String type = typeName.toLowerCase();
+		if("serial".equals(type) || "serial4".equals(type))
+		{
+			return "int4";
+		}
+		if("bigserial".equals(type) || "serial8".equals(type))
+		{
+			return "int8";
+		}
+		if("smallserial".equals(type) || "serial2".equals(type))
+		{
+			return "int2";
+		}
+		return type;
+	}
+
+	/**
+	 * numeric send format: digit count, weight and sign, display scale, then base 10000 digits.
+	 *
+	 */
+	static void writeNumeric(CopyBuffer buffer, BigDecimal value)
+	{
+		if(value.scale()<0)
+		{
+			value = value.setScale(0);
+		}
+		int dscale = value.scale();
+		int sign = value.signum()<0 ? 0x4000 : 0;
+		String plain = value.abs().toPlainString();
+		int dot = plain.indexOf('.');
+		String intPart = dot<0 ? plain : plain.substring(0, dot);
+		String fracPart = dot<0 ? "" : plain.substring(dot+1);
+		if("0".equals(intPart))
+		{
+			intPart = "";
+		}
+		StringBuilder digits = new StringBuilder();
+		for(int i = (4-intPart.length()%4)%4; i > 0; i--)
+		{
+			digits.append('0');
+		}
+		digits.append(intPart);
+		int weight = digits.length()/4-1;
+		digits.append(fracPart);
+		while(digits.length()%4!=0)
+		{
+			digits.append('0');
+		}
+
+		List<Integer> groups = new ArrayList<Integer>();
+		for(int i = 0; i < digits.length(); i += 4)
+		{
+			groups.add(Integer.parseInt(digits.substring(i, i+4)));
+		}
+		while(!groups.isEmpty() && groups.get(0)==0)
+		{
+			groups.remove(0);
+			weight--;
+		}
+		while(!groups.isEmpty() && groups.get(groups.size()-1)==0)
+		{
+			groups.remove(groups.size()-1);
+		}
+		if(groups.isEmpty())
+		{
+			weight = 0;
+			sign = 0;
+		}
+
+		buffer.writeInt(8+2*groups.size());
+		buffer.writeShort(groups.size());
+		buffer.writeShort(weight);
+		buffer.writeShort(sign);
+		buffer.writeShort(dscale);
+		for(int group : groups)
+		{
+			buffer.writeShort(group);
+		}
+	}
+
+	static boolean toBoolean(Object value)
+	{
+		if(value instanceof Boolean)
+		{
+			return (Boolean) value;
+		}
+		if(value instanceof Number)
+		{
+			return ((Number) value).intValue()!=0;
+		}
+		String s = value.toString().trim().toLowerCase();
+		return "t".equals(s) || "true".equals(s) || "y".equals(s) || "yes".equals(s) || "on".equals(s) || "1".equals(s);
+	}
+
+	static long toLong(Object value, long min, long max)
+	{
+		long l;
+		if(value instanceof BigDecimal || value instanceof BigInteger)
+		{
+			l = value instanceof BigDecimal ? ((BigDecimal) value).longValueExact() : ((BigInteger) value).longValueExact();
+		}
+		else
+		if(value instanceof Number)
+		{
+			l = ((Number) value).longValue();
+		}
+		else
+		{
+			l = Long.parseLong(value.toString().trim());
+		}
+		if(l<min || l>max)
+		{
+			throw new IllegalArgumentException("value out of range: "+value);
+		}
+		return l;
+	}
+
+	static BigDecimal toBigDecimal(Object value)
+	{
+		if(value instanceof BigDecimal)
+		{
+			return (BigDecimal) value;
+		}
+		if(value instanceof BigInteger)
+		{
+			return new BigDecimal((BigInteger) value);
+		}
+		if(value instanceof Double || value instanceof Float)
+		{
+			return BigDecimal.valueOf(((Number) value).doubleValue());
+		}
+		if(value instanceof Number)
+		{
+			return BigDecimal.valueOf(((Number) value).longValue());
+		}
+		return new BigDecimal(value.toString().trim());
+	}
+
+	static LocalDate toLocalDate(Object value)
+	{
+		if(value instanceof LocalDate)
+		{
+			return (LocalDate) value;
+		}
+		if(value instanceof java.sql.Date)
+		{
+			return ((java.sql.Date) value).toLocalDate();
+		}
+		if(value instanceof java.util.Date)
+		{
+			return new java.sql.Date(((java.util.Date) value).getTime()).toLocalDate();
+		}
+		return LocalDate.parse(value.toString().trim());
+	}
+
+	static LocalDateTime toLocalDateTime(Object value)
+	{
+		if(value instanceof LocalDateTime)
+		{
+			return (LocalDateTime) value;
+		}
+		if(value instanceof Timestamp)
+		{
+			return ((Timestamp) value).toLocalDateTime();
+		}
+		if(value instanceof java.util.Date)
+		{
+			return new Timestamp(((java.util.Date) value).getTime()).toLocalDateTime();
+		}
+		return Timestamp.valueOf(value.toString().trim()).toLocalDateTime();
+	}
+
+	static Instant toInstant(Object value)
+	{
+		if(value instanceof Instant)
+		{
+			return (Instant) value;
+		}
+		if(value instanceof OffsetDateTime)
+		{
+			return ((OffsetDateTime) value).toInstant();
+		}
+		if(value instanceof ZonedDateTime)
+		{
+			return ((ZonedDateTime) value).toInstant();
+		}
+		if(value instanceof Timestamp)
+		{
+			return ((Timestamp) value).toInstant();
+		}
+		if(value instanceof java.util.Date)
+		{
+			return Instant.ofEpochMilli(((java.util.Date) value).getTime());
+		}
+		// local times are taken in the jvm zone, as the driver does
+		return toLocalDateTime(value).atZone(ZoneId.systemDefault()).toInstant();
+	}
+
+	/**
+	 * growable byte buffer handed to the copy stream without copying.
+	 *
+	 */
+	static class CopyBuffer extends ByteArrayOutputStream
+	{
+		CopyBuffer(int size)
+		{
+			super(size);
+		}
+
+		@Override
+		public void write(byte[] b)
+		{
+			this.write(b, 0, b.length);
+		}
+
+		void writeShort(int v)
+		{
+			this.write((v>>>8)&0xff);
+			this.write(v&0xff);
+		}
+
+		void writeInt(int v)
+		{
+			this.writeShort(v>>>16);
+			this.writeShort(v);
+		}
+
+		void writeLong(long v)
+		{
+			this.writeInt((int) (v>>>32));
+			this.writeInt((int) v);
+		}
+
+		void sendTo(CopyIn copyIn) throws SQLException
+		{
+			if(this.count>0)
+			{
+				copyIn.writeToCopy(this.buf, 0, this.count);
+				this.reset();
+			}
+		}
+	}
+}
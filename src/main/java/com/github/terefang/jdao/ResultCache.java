@@ -0,0 +1,562 @@
+/*
+ * Copyright (c) 2017. terefang@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.terefang.jdao;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * lru cache of query results with per-entry ttl and invalidation by table.
+ * <p>
+ * entries are keyed by dbType, final sql, bound arguments and handler type, and remember the tables
+ * their sql reads from (FROM/JOIN). a write through a JdaoQueryRunner using this cache invalidates all entries
+ * reading the written table, a write whose table cannot be told (ddl, cte, ...) invalidates everything.
+ * callers get copies of the cached results, so they may modify them freely.
+ * <p>
+ * writes invalidate when the statement runs, and writes done with autocommit off once more after the commit
+ * (JDAO.commitTransaction, AsyncJDAO and BulkLoader do this, code committing on its own connection calls
+ * JdaoQueryRunner.afterCommit), so old rows cached by readers on other connections before the commit are dropped.
+ * results read inside a transaction (autocommit off) are never cached.
+ *
+ */
+public class ResultCache
+{
+	public static final int DEFAULT_MAX_ENTRIES = 1024;
+	public static final long DEFAULT_TTL_MILLIS = 60000L;
+
+	// registered for sql without recognizable tables, invalidated by every write
+	static final String ANY_TABLE = "*";
+
+	private final int maxEntries;
+	private final long maxWeight;
+	private final long ttlNanos;
+
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private final Map<String, Set<Key>> tableIndex = new HashMap<String, Set<Key>>();
+	private long weight = 0L;
+
+	// bumped on every invalidation, a result loaded across an invalidation is not stored
+	private final AtomicLong generation = new AtomicLong();
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	public ResultCache()
+	{
+		this(DEFAULT_MAX_ENTRIES, 0L, DEFAULT_TTL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param maxEntries, maximum number of cached results
+	 * @param maxWeight, maximum number of cached rows over all results, 0 for no limit
+	 * @param ttl, time to live of an entry, 0 for no expiry
+	 * @param unit, unit of ttl
+	 */
+	public ResultCache(int maxEntries, long maxWeight, long ttl, TimeUnit unit)
+	{
+		this.maxEntries = maxEntries<=0 ? DEFAULT_MAX_ENTRIES : maxEntries;
+		this.maxWeight = maxWeight;
+		this.ttlNanos = unit.toNanos(ttl);
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	public long getInvalidations()
+	{
+		return invalidations.get();
+	}
+
+	public int size()
+	{
+		lock.lock();
+		try
+		{
+			return entries.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	long generation()
+	{
+		return generation.get();
+	}
+
+	/**
+	 * returns a copy of the cached result or null.
+	 *
+	 */
+	Object get(Key key)
+	{
+		Object value = null;
+		lock.lock();
+		try
+		{
+			Entry entry = entries.get(key);
+			if(entry!=null && entry.expiresAt!=0L && entry.expiresAt-System.nanoTime()<=0L)
+			{
+				this.remove(key);
+				entry = null;
+			}
+			if(entry!=null)
+			{
+				value = entry.value;
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		if(value==null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return copyOf(value);
+	}
+
+	/**
+	 * stores a copy of value unless an invalidation happened since generation was taken.
+	 *
+	 */
+	void put(Key key, Object value, long generation)
+	{
+		if(value==null)
+		{
+			return;
+		}
+		Set<String> tables = readTables(key.sql);
+		Entry entry = new Entry(copyOf(value), tables, weightOf(value), this.ttlNanos==0L ? 0L : System.nanoTime()+this.ttlNanos);
+		lock.lock();
+		try
+		{
+			if(this.generation.get()!=generation)
+			{
+				return;
+			}
+			this.remove(key);
+			entries.put(key, entry);
+			weight += entry.weight;
+			for(String table : tables)
+			{
+				Set<Key> keys = tableIndex.get(table);
+				if(keys==null)
+				{
+					keys = new HashSet<Key>();
+					tableIndex.put(table, keys);
+				}
+				keys.add(key);
+			}
+			this.evict();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private void evict()
+	{
+		Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+		while(it.hasNext() && (entries.size()>this.maxEntries || (this.maxWeight>0L && weight>this.maxWeight && entries.size()>1)))
+		{
+			Map.Entry<Key, Entry> eldest = it.next();
+			it.remove();
+			this.unlink(eldest.getKey(), eldest.getValue());
+			evictions.incrementAndGet();
+		}
+	}
+
+	private void remove(Key key)
+	{
+		Entry entry = entries.remove(key);
+		if(entry!=null)
+		{
+			this.unlink(key, entry);
+		}
+	}
+
+	private void unlink(Key key, Entry entry)
+	{
+		weight -= entry.weight;
+		for(String table : entry.tables)
+		{
+			Set<Key> keys = tableIndex.get(table);
+			if(keys!=null)
+			{
+				keys.remove(key);
+				if(keys.isEmpty())
+				{
+					tableIndex.remove(table);
+				}
+			}
+		}
+	}
+
+	/**
+	 * drops all results reading from the given table.
+	 *
+	 */
+	public void invalidateTable(String table)
+	{
+		String name = normalizeTable(table);
+		lock.lock();
+		try
+		{
+			generation.incrementAndGet();
+			invalidations.incrementAndGet();
+			this.removeTable(name);
+			this.removeTable(ANY_TABLE);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private void removeTable(String name)
+	{
+		Set<Key> keys = tableIndex.remove(name);
+		if(keys!=null)
+		{
+			for(Key key : new ArrayList<Key>(keys))
+			{
+				this.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * drops all results reading from the table written by sql, or all results if the table is unknown.
+	 *
+	 */
+	public void invalidateSql(String sql)
+	{
+		String table = writeTable(sql);
+		if(table==null)
+		{
+			this.clear();
+		}
+		else
+		{
+			this.invalidateTable(table);
+		}
+	}
+
+	public void clear()
+	{
+		lock.lock();
+		try
+		{
+			generation.incrementAndGet();
+			invalidations.incrementAndGet();
+			entries.clear();
+			tableIndex.clear();
+			weight = 0L;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	static Key keyFor(int dbType, String sql, Object[] args, Object rsHandler)
+	{
+		return new Key(dbType, sql, args, rsHandler.getClass());
+	}
+
+	static final class Key
+	{
+		final int dbType;
+		final String sql;
+		final Object[] args;
+		final Class<?> handlerType;
+		final int hash;
+
+		Key(int dbType, String sql, Object[] args, Class<?> handlerType)
+		{
+			this.dbType = dbType;
+			this.sql = sql;
+			this.args = args==null ? new Object[0] : args.clone();
+			this.handlerType = handlerType;
+			this.hash = ((dbType*31+sql.hashCode())*31+Arrays.deepHashCode(this.args))*31+handlerType.hashCode();
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if(this==o)
+			{
+				return true;
+			}
+			if(!(o instanceof Key))
+			{
+				return false;
+			}
+			Key k = (Key) o;
+			return this.hash==k.hash
+					&& this.dbType==k.dbType
+					&& this.handlerType==k.handlerType
+					&& this.sql.equals(k.sql)
+					&& Arrays.deepEquals(this.args, k.args);
+		}
+	}
+
+	static final class Entry
+	{
+		final Object value;
+		final Set<String> tables;
+		final long weight;
+		final long expiresAt;
+
+		Entry(Object value, Set<String> tables, long weight, long expiresAt)
+		{
+			this.value = value;
+			this.tables = tables;
+			this.weight = weight;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * number of rows (or map entries) of a result, 1 for scalars.
+	 *
+	 */
+	static long weightOf(Object value)
+	{
+		if(value instanceof Collection)
+		{
+			return Math.max(1, ((Collection) value).size());
+		}
+		if(value instanceof Map)
+		{
+			return Math.max(1, ((Map) value).size());
+		}
+		return 1L;
+	}
+
+	/**
+	 * copies lists, maps, rows and arrays of a result, leaf values are shared.
+	 *
+	 */
+	static Object copyOf(Object value)
+	{
+		if(value instanceof ResultRow)
+		{
+			return ((ResultRow) value).copy();
+		}
+		if(value instanceof List)
+		{
+			List list = (List) value;
+			List<Object> ret = new ArrayList<Object>(list.size());
+			for(Object o : list)
+			{
+				ret.add(copyOf(o));
+			}
+			return ret;
+		}
+		if(value instanceof Map)
+		{
+			Map<Object,Object> ret = new LinkedHashMap<Object,Object>();
+			for(Object o : ((Map) value).entrySet())
+			{
+				Map.Entry kv = (Map.Entry) o;
+				ret.put(kv.getKey(), copyOf(kv.getValue()));
+			}
+			return ret;
+		}
+		if(value instanceof Object[])
+		{
+			return ((Object[]) value).clone();
+		}
+		return value;
+	}
+
+	private static final String IDENTIFIER = "(?:\"[^\"]*\"|`[^`]*`|\\[[^\\]]*\\]|[\\w$]+)(?:\\s*\\.\\s*(?:\"[^\"]*\"|`[^`]*`|\\[[^\\]]*\\]|[\\w$]+))*";
+
+	private static final Pattern SQL_TOKEN = Pattern.compile("'(?:[^']|'')*'|"+IDENTIFIER+"|\\S");
+
+	private static final Pattern WRITE_TABLE = Pattern.compile("^\\s*(?:INSERT\\s+(?:IGNORE\\s+)?INTO|REPLACE\\s+INTO|UPSERT\\s+INTO|MERGE\\s+INTO|UPDATE|DELETE\\s+FROM|TRUNCATE(?:\\s+TABLE)?)\\s+(?:ONLY\\s+)?("+IDENTIFIER+")", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * returns the tables named after FROM, JOIN and commas within a FROM clause, or ANY_TABLE if there are none.
+	 * <p>
+	 * this over-approximates (ie. "EXTRACT(YEAR FROM col)" yields "col"), which only costs extra invalidations.
+	 *
+	 */
+	static Set<String> readTables(String sql)
+	{
+		List<String> tokens = new ArrayList<String>();
+		Matcher m = SQL_TOKEN.matcher(sql);
+		while(m.find())
+		{
+			tokens.add(m.group());
+		}
+
+		Set<String> ret = new HashSet<String>();
+		boolean inFrom = false;
+		boolean expectTable = false;
+		// FROM state of the enclosing levels, a subquery must not end the outer FROM clause
+		Deque<Boolean> outer = new ArrayDeque<Boolean>();
+		for(String token : tokens)
+		{
+			if("(".equals(token))
+			{
+				outer.push(inFrom);
+				inFrom = false;
+				expectTable = false;
+			}
+			else
+			if(")".equals(token))
+			{
+				inFrom = outer.isEmpty() ? false : outer.pop();
+				expectTable = false;
+			}
+			else
+			if("FROM".equalsIgnoreCase(token) || "JOIN".equalsIgnoreCase(token))
+			{
+				inFrom = true;
+				expectTable = true;
+			}
+			else
+			if(inFrom && FROM_END_KEYWORDS.contains(token.toLowerCase()))
+			{
+				inFrom = false;
+				expectTable = false;
+			}
+			else
+			if(inFrom && ",".equals(token))
+			{
+				expectTable = true;
+			}
+			else
+			if(expectTable)
+			{
+				if(isName(token) && !"LATERAL".equalsIgnoreCase(token) && !"ONLY".equalsIgnoreCase(token))
+				{
+					ret.add(normalizeTable(token));
+				}
+				expectTable = false;
+			}
+		}
+		if(ret.isEmpty())
+		{
+			ret.add(ANY_TABLE);
+		}
+		return ret;
+	}
+
+	/**
+	 * returns the table an INSERT/UPDATE/DELETE/MERGE/TRUNCATE writes to, or null.
+	 *
+	 */
+	static String writeTable(String sql)
+	{
+		Matcher m = WRITE_TABLE.matcher(sql);
+		if(m.find())
+		{
+			return normalizeTable(m.group(1));
+		}
+		return null;
+	}
+
+	/**
+	 * strips quoting and schema, and lowercases the table name.
+	 *
+	 */
+	static String normalizeTable(String name)
+	{
+		String ret = name.trim();
+		// cut at the last dot outside of quotes
+		char quote = 0;
+		int start = 0;
+		for(int i = 0; i < ret.length(); i++)
+		{
+			char c = ret.charAt(i);
+			if(quote!=0)
+			{
+				if(c==quote)
+				{
+					quote = 0;
+				}
+			}
+			else
+			if(c=='"' || c=='`')
+			{
+				quote = c;
+			}
+			else
+			if(c=='[')
+			{
+				quote = ']';
+			}
+			else
+			if(c=='.')
+			{
+				start = i+1;
+			}
+		}
+		ret = ret.substring(start);
+		ret = ret.trim();
+		if(ret.length()>1 && (ret.charAt(0)=='"' || ret.charAt(0)=='`' || ret.charAt(0)=='['))
+		{
+			ret = ret.substring(1, ret.length()-1);
+		}
+		return ret.toLowerCase();
+	}
+
+	private static boolean isName(String token)
+	{
+		char c = token.charAt(0);
+		return c!='\'' && (Character.isLetterOrDigit(c) || c=='_' || c=='$' || c=='"' || c=='`' || c=='[');
+	}
+
+	// keywords ending a FROM clause, after them a comma no longer separates tables
+	private static final Set<String> FROM_END_KEYWORDS = new HashSet<String>(Arrays.asList(
+			"select", "where", "group", "having", "order", "limit", "offset", "fetch", "for", "window",
+			"union", "intersect", "except", "minus", "set", "values", "returning"));
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2017. terefang@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.terefang.jdao;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.commons.dbutils.QueryRunner;
+
+import java.io.Closeable;
+import java.sql.*;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * lazy, forward-only cursor over a query result.
+ * <p>
+ * rows are fetched from the driver as the cursor is advanced, the result set, statement
+ * and (if borrowed from the datasource) the connection are released when the cursor is
+ * exhausted or closed.
+ *
+ */
+public class ResultCursor<T> implements Iterator<T>, Closeable, AutoCloseable
+{
+	public static interface RowMapper<T>
+	{
+		public T mapRow(ResultSet rs) throws SQLException;
+	}
+
+	private final Connection conn;
+	private final boolean closeConn;
+	private final boolean restoreAutoCommit;
+	private final PreparedStatement stmt;
+	private final ResultSet rs;
+	private final RowMapper<T> rowMapper;
+
+	private boolean advanced = false;
+	private boolean hasRow = false;
+	private boolean closed = false;
+
+	ResultCursor(Connection conn, boolean closeConn, boolean restoreAutoCommit, PreparedStatement stmt, ResultSet rs, RowMapper<T> rowMapper)
+	{
+		this.conn = conn;
+		this.closeConn = closeConn;
+		this.restoreAutoCommit = restoreAutoCommit;
+		this.stmt = stmt;
+		this.rs = rs;
+		this.rowMapper = rowMapper;
+	}
+
+	/**
+	 * executes the query and returns a cursor over its rows.
+	 * <p>
+	 * the statement is configured for a server-side cursor according to dbType,
+	 * if that requires a transaction, autocommit is switched off and restored on close.
+	 *
+	 * @param  dbType, type of database
+	 * @param  conn, database connection or null to borrow one from the query runners datasource
+	 * @param  ds, query runner
+	 * @param  fetchSize, rows fetched per round-trip (0 for driver default)
+	 * @param  rowMapper, maps the current row of the result set
+	 * @param  sql, sql query
+	 * @param  args, sql parameters
+	 */
+	public static <T> ResultCursor<T> open(int dbType, Connection conn, QueryRunner ds, int fetchSize, RowMapper<T> rowMapper, String sql, Object... args)
+			throws SQLException
+	{
+		Connection _conn = JDAO.openConnection(conn, ds);
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		boolean restoreAutoCommit = false;
+		try
+		{
+			if(fetchSize!=0 && JdaoUtils.cursorRequiresTransactionPerDbType(dbType) && _conn.getAutoCommit())
+			{
+				_conn.setAutoCommit(false);
+				restoreAutoCommit = true;
+			}
+			stmt = _conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			if(fetchSize!=0)
+			{
+				stmt.setFetchSize(JdaoUtils.cursorFetchSizePerDbType(dbType, fetchSize));
+			}
+			if(args!=null)
+			{
+				JDAO.fillStatement(ds, stmt, sql, args);
+			}
+			rs = stmt.executeQuery();
+			return new ResultCursor<T>(_conn, conn==null, restoreAutoCommit, stmt, rs, rowMapper);
+		}
+		catch(SQLException xe)
+		{
+			DbUtils.closeQuietly(rs);
+			DbUtils.closeQuietly(stmt);
+			if(restoreAutoCommit)
+			{
+				restoreAutoCommit(_conn);
+			}
+			JDAO.releaseConnection(conn, _conn);
+			throw xe;
+		}
+	}
+
+	static void restoreAutoCommit(Connection conn)
+	{
+		try
+		{
+			conn.commit();
+			conn.setAutoCommit(true);
+		}
+		catch(SQLException xe)
+		{
+			JDAO.LOG.debug("error restoring autocommit", xe);
+		}
+	}
+
+	ResultSet getResultSet()
+	{
+		return this.rs;
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		if(this.closed)
+		{
+			return false;
+		}
+		if(!this.advanced)
+		{
+			try
+			{
+				this.hasRow = this.rs.next();
+				this.advanced = true;
+			}
+			catch(SQLException xe)
+			{
+				this.close();
+				throw new IllegalStateException(xe);
+			}
+			if(!this.hasRow)
+			{
+				this.close();
+			}
+		}
+		return this.hasRow;
+	}
+
+	@Override
+	public T next()
+	{
+		if(!this.hasNext())
+		{
+			throw new NoSuchElementException();
+		}
+		this.advanced = false;
+		try
+		{
+			return this.rowMapper.mapRow(this.rs);
+		}
+		catch(SQLException xe)
+		{
+			this.close();
+			throw new IllegalStateException(xe);
+		}
+	}
+
+	public boolean isClosed()
+	{
+		return closed;
+	}
+
+	/**
+	 * returns a sequential stream over the remaining rows, closing the stream closes the cursor.
+	 *
+	 */
+	public Stream<T> stream()
+	{
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false)
+				.onClose(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						ResultCursor.this.close();
+					}
+				});
+	}
+
+	@Override
+	public void close()
+	{
+		if(this.closed)
+		{
+			return;
+		}
+		this.closed = true;
+		this.hasRow = false;
+		DbUtils.closeQuietly(this.rs);
+		DbUtils.closeQuietly(this.stmt);
+		if(this.restoreAutoCommit)
+		{
+			restoreAutoCommit(this.conn);
+		}
+		if(this.closeConn)
+		{
+			DbUtils.closeQuietly(this.conn);
+		}
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2017. terefang@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.terefang.jdao;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * cold reactive-streams publisher over a query result.
+ * <p>
+ * each subscription opens its own cursor on the first request and fetches rows only as demand arrives,
+ * the cursor (statement and borrowed connection) is released on completion, error or cancel.
+ * rows are emitted on the thread calling request(n), or on the given executor.
+ * use org.reactivestreams.FlowAdapters to get a java.util.concurrent.Flow.Publisher on java 9+.
+ *
+ */
+public class ResultPublisher<T> implements Publisher<T>
+{
+	public static interface CursorSource<T>
+	{
+		public ResultCursor<T> open() throws Exception;
+	}
+
+	private final CursorSource<T> source;
+	private final Executor executor;
+
+	public ResultPublisher(CursorSource<T> source)
+	{
+		this(source, null);
+	}
+
+	public ResultPublisher(CursorSource<T> source, Executor executor)
+	{
+		this.source = source;
+		this.executor = executor;
+	}
+
+	/**
+	 * creates a publisher typed as Publisher, so classes calling this verify without
+	 * reactive-streams on the classpath (it is an optional dependency).
+	 *
+	 */
+	public static <T> Publisher<T> of(CursorSource<T> source)
+	{
+		return new ResultPublisher<T>(source);
+	}
+
+	@Override
+	public void subscribe(Subscriber<? super T> subscriber)
+	{
+		if(subscriber==null)
+		{
+			throw new NullPointerException("subscriber");
+		}
+		CursorSubscription<T> subscription = new CursorSubscription<T>(this.source, this.executor, subscriber);
+		subscriber.onSubscribe(subscription);
+	}
+
+	static final class CursorSubscription<T> implements Subscription, Runnable
+	{
+		final CursorSource<T> source;
+		final Executor executor;
+		final Subscriber<? super T> subscriber;
+
+		final AtomicLong requested = new AtomicLong();
+		final AtomicInteger wip = new AtomicInteger();
+		volatile boolean cancelled = false;
+		volatile Throwable badRequest = null;
+
+		// only touched by the thread owning the drain loop
+		ResultCursor<T> cursor = null;
+		boolean done = false;
+
+		CursorSubscription(CursorSource<T> source, Executor executor, Subscriber<? super T> subscriber)
+		{
+			this.source = source;
+			this.executor = executor;
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n)
+		{
+			if(n<=0)
+			{
+				this.badRequest = new IllegalArgumentException("non-positive request: "+n);
+			}
+			else
+			{
+				long r, u;
+				do
+				{
+					r = this.requested.get();
+					u = r+n;
+					if(u<0)
+					{
+						u = Long.MAX_VALUE;
+					}
+				}
+				while(!this.requested.compareAndSet(r, u));
+			}
+			this.schedule();
+		}
+
+		@Override
+		public void cancel()
+		{
+			this.cancelled = true;
+			this.schedule();
+		}
+
+		void schedule()
+		{
+			if(this.wip.getAndIncrement()!=0)
+			{
+				return;
+			}
+			if(this.executor!=null)
+			{
+				this.executor.execute(this);
+			}
+			else
+			{
+				this.run();
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			int missed = 1;
+			do
+			{
+				if(!this.done)
+				{
+					this.drain();
+				}
+				missed = this.wip.addAndGet(-missed);
+			}
+			while(missed!=0);
+		}
+
+		void drain()
+		{
+			if(this.cancelled)
+			{
+				this.terminate();
+				return;
+			}
+			if(this.badRequest!=null)
+			{
+				this.terminate();
+				this.subscriber.onError(this.badRequest);
+				return;
+			}
+
+			long r = this.requested.get();
+			if(r==0)
+			{
+				return;
+			}
+
+			if(this.cursor==null)
+			{
+				try
+				{
+					this.cursor = this.source.open();
+				}
+				catch(Throwable xe)
+				{
+					this.terminate();
+					this.subscriber.onError(xe);
+					return;
+				}
+			}
+
+			long e = 0;
+			while(e!=r)
+			{
+				if(this.cancelled)
+				{
+					this.terminate();
+					return;
+				}
+
+				T item;
+				try
+				{
+					if(!this.cursor.hasNext())
+					{
+						this.terminate();
+						this.subscriber.onComplete();
+						return;
+					}
+					item = this.cursor.next();
+				}
+				catch(Throwable xe)
+				{
+					this.terminate();
+					this.subscriber.onError(xe);
+					return;
+				}
+
+				try
+				{
+					this.subscriber.onNext(item);
+				}
+				catch(Throwable xe)
+				{
+					// a throwing onNext cancels the subscription (rule 2.13), the cursor must not leak
+					this.cancelled = true;
+					this.terminate();
+					this.subscriber.onError(xe);
+					return;
+				}
+				e++;
+
+				if(e==r)
+				{
+					// pick up demand signalled from within onNext
+					r = this.requested.addAndGet(-e);
+					e = 0;
+					if(r==0)
+					{
+						return;
+					}
+				}
+			}
+		}
+
+		void terminate()
+		{
+			this.done = true;
+			if(this.cursor!=null)
+			{
+				this.cursor.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright (c) 2017. terefang@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.terefang.jdao;
+
+import java.io.Serializable;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * case-insensitive row map backed by an object array.
+ * <p>
+ * the column index (lowercased labels and their positions) is computed once per result set
+ * and shared by all rows, keys added after the fact are kept in a small overflow map.
+ *
+ */
+public class ResultRow extends AbstractMap<String,Object> implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	private static final Object REMOVED = new Removed();
+
+	private final ColumnIndex columnIndex;
+	private final Object[] values;
+	private int removed = 0;
+	private LinkedHashMap<String,Object> overflow = null;
+	private transient Set<Map.Entry<String,Object>> entrySet = null;
+
+	ResultRow(ColumnIndex columnIndex, Object[] values)
+	{
+		this.columnIndex = columnIndex;
+		this.values = values;
+	}
+
+	/**
+	 * reads the current row of the result set.
+	 *
+	 */
+	public static ResultRow of(ColumnIndex columnIndex, ResultSet rs) throws SQLException
+	{
+		int[] positions = columnIndex.positions;
+		Object[] values = new Object[positions.length];
+		for(int i = 0; i < positions.length; i++)
+		{
+			values[i] = rs.getObject(positions[i]);
+		}
+		return new ResultRow(columnIndex, values);
+	}
+
+	/**
+	 * returns an independent copy of the row, sharing the column index.
+	 *
+	 */
+	public ResultRow copy()
+	{
+		ResultRow ret = new ResultRow(this.columnIndex, this.values.clone());
+		ret.removed = this.removed;
+		if(this.overflow!=null)
+		{
+			ret.overflow = new LinkedHashMap<String,Object>(this.overflow);
+		}
+		return ret;
+	}
+
+	@Override
+	public int size()
+	{
+		return this.values.length - this.removed + (this.overflow==null ? 0 : this.overflow.size());
+	}
+
+	@Override
+	public boolean containsKey(Object key)
+	{
+		int i = this.columnIndex.indexOf(key);
+		if(i>=0)
+		{
+			return this.values[i]!=REMOVED;
+		}
+		return this.overflow!=null && this.overflow.containsKey(ColumnIndex.normalize(key));
+	}
+
+	@Override
+	public Object get(Object key)
+	{
+		int i = this.columnIndex.indexOf(key);
+		if(i>=0)
+		{
+			Object v = this.values[i];
+			return v==REMOVED ? null : v;
+		}
+		return this.overflow==null ? null : this.overflow.get(ColumnIndex.normalize(key));
+	}
+
+	@Override
+	public Object put(String key, Object value)
+	{
+		int i = this.columnIndex.indexOf(key);
+		if(i>=0)
+		{
+			Object v = this.values[i];
+			this.values[i] = value;
+			if(v==REMOVED)
+			{
+				this.removed--;
+				return null;
+			}
+			return v;
+		}
+		if(this.overflow==null)
+		{
+			this.overflow = new LinkedHashMap<String,Object>();
+		}
+		return this.overflow.put(ColumnIndex.normalize(key), value);
+	}
+
+	@Override
+	public Object remove(Object key)
+	{
+		int i = this.columnIndex.indexOf(key);
+		if(i>=0)
+		{
+			Object v = this.values[i];
+			if(v==REMOVED)
+			{
+				return null;
+			}
+			this.values[i] = REMOVED;
+			this.removed++;
+			return v;
+		}
+		return this.overflow==null ? null : this.overflow.remove(ColumnIndex.normalize(key));
+	}
+
+	@Override
+	public void clear()
+	{
+		Arrays.fill(this.values, REMOVED);
+		this.removed = this.values.length;
+		this.overflow = null;
+	}
+
+	@Override
+	public Set<Map.Entry<String,Object>> entrySet()
+	{
+		if(this.entrySet==null)
+		{
+			this.entrySet = new AbstractSet<Map.Entry<String,Object>>()
+			{
+				@Override
+				public Iterator<Map.Entry<String,Object>> iterator()
+				{
+					return new EntryIterator();
+				}
+
+				@Override
+				public int size()
+				{
+					return ResultRow.this.size();
+				}
+			};
+		}
+		return this.entrySet;
+	}
+
+	class EntryIterator implements Iterator<Map.Entry<String,Object>>
+	{
+		int next = 0;
+		int last = -1;
+		Iterator<Map.Entry<String,Object>> overflowIterator = null;
+
+		EntryIterator()
+		{
+			this.advance();
+		}
+
+		void advance()
+		{
+			while(this.next < values.length && values[this.next]==REMOVED)
+			{
+				this.next++;
+			}
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			if(this.next < values.length)
+			{
+				return true;
+			}
+			if(this.overflowIterator==null)
+			{
+				if(overflow==null)
+				{
+					return false;
+				}
+				this.overflowIterator = overflow.entrySet().iterator();
+			}
+			return this.overflowIterator.hasNext();
+		}
+
+		@Override
+		public Map.Entry<String,Object> next()
+		{
+			if(!this.hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+			if(this.next < values.length)
+			{
+				this.last = this.next++;
+				this.advance();
+				return new Entry(this.last);
+			}
+			this.last = -1;
+			return this.overflowIterator.next();
+		}
+
+		@Override
+		public void remove()
+		{
+			if(this.overflowIterator!=null && this.last<0)
+			{
+				this.overflowIterator.remove();
+				return;
+			}
+			if(this.last<0 || values[this.last]==REMOVED)
+			{
+				throw new IllegalStateException();
+			}
+			values[this.last] = REMOVED;
+			removed++;
+		}
+	}
+
+	class Entry implements Map.Entry<String,Object>
+	{
+		final int i;
+
+		Entry(int i)
+		{
+			this.i = i;
+		}
+
+		@Override
+		public String getKey()
+		{
+			return columnIndex.keys[this.i];
+		}
+
+		@Override
+		public Object getValue()
+		{
+			Object v = values[this.i];
+			return v==REMOVED ? null : v;
+		}
+
+		@Override
+		public Object setValue(Object value)
+		{
+			Object v = this.getValue();
+			values[this.i] = value;
+			return v;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if(!(o instanceof Map.Entry))
+			{
+				return false;
+			}
+			Map.Entry e = (Map.Entry) o;
+			Object v = this.getValue();
+			return this.getKey().equals(e.getKey()) && (v==null ? e.getValue()==null : v.equals(e.getValue()));
+		}
+
+		@Override
+		public int hashCode()
+		{
+			Object v = this.getValue();
+			return this.getKey().hashCode() ^ (v==null ? 0 : v.hashCode());
+		}
+
+		@Override
+		public String toString()
+		{
+			return this.getKey()+"="+this.getValue();
+		}
+	}
+
+	/**
+	 * marker for a removed column, resolves to the shared instance when deserialized.
+	 *
+	 */
+	static final class Removed implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		private Object readResolve()
+		{
+			return REMOVED;
+		}
+	}
+
+	/**
+	 * lowercased column labels of a result set and the column position each key is read from.
+	 * <p>
+	 * if several columns share a label, the last one wins (as with a plain map put).
+	 *
+	 */
+	public static final class ColumnIndex implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		final String[] keys;
+		final int[] positions;
+		final HashMap<String,Integer> index;
+
+		ColumnIndex(String[] keys, int[] positions)
+		{
+			this.keys = keys;
+			this.positions = positions;
+			this.index = new HashMap<String,Integer>(keys.length*2);
+			for(int i = 0; i < keys.length; i++)
+			{
+				this.index.put(keys[i], i);
+			}
+		}
+
+		public static ColumnIndex of(ResultSet rs) throws SQLException
+		{
+			return of(rs.getMetaData());
+		}
+
+		public static ColumnIndex of(ResultSetMetaData rsmd) throws SQLException
+		{
+			int cols = rsmd.getColumnCount();
+			LinkedHashMap<String,Integer> labels = new LinkedHashMap<String,Integer>(cols*2);
+			for(int i = 1; i <= cols; i++)
+			{
+				String label = rsmd.getColumnLabel(i);
+				if(label==null)
+				{
+					label = rsmd.getColumnName(i);
+				}
+				labels.put(label.toLowerCase(), i);
+			}
+
+			String[] keys = new String[labels.size()];
+			int[] positions = new int[labels.size()];
+			int j = 0;
+			for(Map.Entry<String,Integer> e : labels.entrySet())
+			{
+				keys[j] = e.getKey();
+				positions[j] = e.getValue();
+				j++;
+			}
+			return new ColumnIndex(keys, positions);
+		}
+
+		public int size()
+		{
+			return this.keys.length;
+		}
+
+		public String[] getKeys()
+		{
+			return this.keys.clone();
+		}
+
+		/**
+		 * returns the array index of the key or -1, already lowercased keys are found without conversion.
+		 *
+		 */
+		public int indexOf(Object key)
+		{
+			Integer i = this.index.get(key);
+			if(i==null)
+			{
+				String k = key.toString();
+				String lk = k.toLowerCase();
+				if(lk.equals(k))
+				{
+					return -1;
+				}
+				i = this.index.get(lk);
+				if(i==null)
+				{
+					return -1;
+				}
+			}
+			return i;
+		}
+
+		static String normalize(Object key)
+		{
+			return key.toString().toLowerCase();
+		}
+	}
+}
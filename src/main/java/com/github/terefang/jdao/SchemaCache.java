@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2017. terefang@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.terefang.jdao;
+
+import org.apache.commons.dbutils.QueryRunner;
+
+import java.sql.Connection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * cache of table metadata, each table is read once from DatabaseMetaData and kept until the ttl runs out
+ * or it is refreshed. missing tables are cached as well.
+ * <p>
+ * attached to a JdaoQueryRunner it serves queryFieldList and queryTableMetadata, limits template queries
+ * to known columns and keeps primary key columns out of upsert updates. ddl run through the runner clears it.
+ *
+ */
+public class SchemaCache
+{
+	public static final long DEFAULT_TTL_MILLIS = 600000L;
+
+	private final long ttlNanos;
+	private final Map<String, Entry> tables = new ConcurrentHashMap<String, Entry>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+
+	public SchemaCache()
+	{
+		this(DEFAULT_TTL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param ttl, time to live of an entry, 0 for no expiry
+	 * @param unit, unit of ttl
+	 */
+	public SchemaCache(long ttl, TimeUnit unit)
+	{
+		this.ttlNanos = unit.toNanos(ttl);
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getLoads()
+	{
+		return loads.get();
+	}
+
+	/**
+	 * returns the metadata of the table, or null if there is no such table.
+	 *
+	 */
+	public TableMetadata get(int dbType, Connection conn, QueryRunner ds, String schemaName, String tableName) throws Exception
+	{
+		String key = keyOf(schemaName, tableName);
+		Entry entry = this.tables.get(key);
+		if(entry!=null && (entry.expiresAt==0L || entry.expiresAt-System.nanoTime()>0L))
+		{
+			hits.incrementAndGet();
+			return entry.metadata;
+		}
+
+		loads.incrementAndGet();
+		TableMetadata metadata;
+		Connection _conn = JDAO.openConnection(conn, ds);
+		try
+		{
+			metadata = TableMetadata.load(dbType, _conn, schemaName, tableName);
+		}
+		finally
+		{
+			JDAO.releaseConnection(conn, _conn);
+		}
+		this.tables.put(key, new Entry(metadata, this.ttlNanos==0L ? 0L : System.nanoTime()+this.ttlNanos));
+		return metadata;
+	}
+
+	/**
+	 * drops the table, it is read again on next use.
+	 *
+	 */
+	public void refresh(String schemaName, String tableName)
+	{
+		this.tables.remove(keyOf(schemaName, tableName));
+	}
+
+	public void clear()
+	{
+		this.tables.clear();
+	}
+
+	static String keyOf(String schemaName, String tableName)
+	{
+		return (schemaName==null ? "" : schemaName.toLowerCase())+"."+tableName.toLowerCase();
+	}
+
+	/**
+	 * splits "schema.table" into schema (or null) and table, stripping identifier quotes.
+	 *
+	 */
+	static String[] splitTableName(String table)
+	{
+		String name = table.trim();
+		int dot = name.lastIndexOf('.');
+		String schema = dot<0 ? null : unquote(name.substring(0, dot));
+		return new String[] { schema, unquote(name.substring(dot+1)) };
+	}
+
+	static String unquote(String name)
+	{
+		name = name.trim();
+		if(name.length()>1 && (name.charAt(0)=='"' || name.charAt(0)=='`' || name.charAt(0)=='['))
+		{
+			return name.substring(1, name.length()-1);
+		}
+		return name;
+	}
+
+	static final class Entry
+	{
+		final TableMetadata metadata;
+		final long expiresAt;
+
+		Entry(TableMetadata metadata, long expiresAt)
+		{
+			this.metadata = metadata;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
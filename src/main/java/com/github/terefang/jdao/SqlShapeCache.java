@@ -0,0 +1,508 @@
+/*
+ * Copyright (c) 2017. terefang@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.terefang.jdao;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.github.terefang.jdao.JDAO.*;
+
+/**
+ * cache for generated insert/upsert/update statements keyed by their shape
+ * (dbType, table, ordered column set, upsert flag, update columns).
+ * <p>
+ * callers extract the parameter values from their row in the same column order they passed in.
+ *
+ */
+public class SqlShapeCache
+{
+    public static final int SHAPE_CACHE_SIZE = 4096;
+
+    static final int SHAPE_INSERT = 1;
+    static final int SHAPE_UPDATE = 2;
+    static final int SHAPE_INSERT_VALUES = 3;
+    static final int SHAPE_SELECT = 4;
+
+    static final Map<ShapeKey, String> shapeCache = new ConcurrentHashMap<ShapeKey, String>();
+    static final Map<String, ParameterShape> parameterShapes = new ConcurrentHashMap<String, ParameterShape>();
+
+    /**
+     * returns the insert statement for the given columns.
+     * <p>
+     * parameter order is the insert columns followed by the update columns if onDuplicateKeyUpdate is set.
+     *
+     */
+    public static String insertSql(int dbType, String table, String[] cols, boolean onDuplicateKeyUpdate, String[] updateCols)
+    {
+        ShapeKey key = new ShapeKey(SHAPE_INSERT, dbType, table, cols, onDuplicateKeyUpdate ? updateCols : null, onDuplicateKeyUpdate, 1);
+        String sql = shapeCache.get(key);
+        if(sql==null)
+        {
+            sql = buildInsertSql(dbType, table, cols, onDuplicateKeyUpdate, updateCols);
+            cache(key, sql);
+            register(sql, dbType, table, cols, onDuplicateKeyUpdate ? updateCols : null, 1);
+        }
+        return sql;
+    }
+
+    /**
+     * returns the multi-row insert statement for the given columns and number of rows.
+     * <p>
+     * parameter order is the insert columns row by row, on duplicate key the update columns
+     * take the value of the inserted row (EXCLUDED.col resp. VALUES(col)).
+     * <p>
+     * every row count is cached as its own shape, callers should stick to a few row counts.
+     *
+     */
+    public static String insertValuesSql(int dbType, String table, String[] cols, int rows, boolean onDuplicateKeyUpdate, String[] updateCols)
+    {
+        ShapeKey key = new ShapeKey(SHAPE_INSERT_VALUES, dbType, table, cols, onDuplicateKeyUpdate ? updateCols : null, onDuplicateKeyUpdate, rows);
+        String sql = shapeCache.get(key);
+        if(sql==null)
+        {
+            sql = buildInsertValuesSql(dbType, table, cols, rows, onDuplicateKeyUpdate, updateCols);
+            cache(key, sql);
+            register(sql, dbType, table, cols, null, rows);
+        }
+        return sql;
+    }
+
+    /**
+     * returns the update statement for the given columns.
+     * <p>
+     * parameter order is the set columns followed by the where columns.
+     *
+     */
+    public static String updateSql(int dbType, String table, String[] setCols, String[] whereCols)
+    {
+        ShapeKey key = new ShapeKey(SHAPE_UPDATE, dbType, table, setCols, whereCols, false, 1);
+        String sql = shapeCache.get(key);
+        if(sql==null)
+        {
+            sql = buildUpdateSql(dbType, table, setCols, whereCols);
+            cache(key, sql);
+            register(sql, dbType, table, setCols, whereCols, 1);
+        }
+        return sql;
+    }
+
+    /**
+     * returns the "SELECT * ... WHERE" statement for the given key columns.
+     *
+     */
+    public static String selectSql(int dbType, String table, String[] whereCols)
+    {
+        ShapeKey key = new ShapeKey(SHAPE_SELECT, dbType, table, whereCols, null, false, 1);
+        String sql = shapeCache.get(key);
+        if(sql==null)
+        {
+            sql = buildSelectSql(dbType, table, whereCols);
+            cache(key, sql);
+            register(sql, dbType, table, whereCols, null, 1);
+        }
+        return sql;
+    }
+
+    /**
+     * binds a column-map to its cached insert statement.
+     *
+     */
+    public static BoundSql bindInsert(int dbType, String table, Map cols, boolean onDuplicateKeyUpdate, Collection updateFields)
+    {
+        int n = cols.size();
+        String[] colNames = new String[n];
+        Object[] parm = new Object[onDuplicateKeyUpdate ? n+updateFields.size() : n];
+        int i = 0;
+        for(Object kv : cols.entrySet())
+        {
+            colNames[i] = String.valueOf(((Map.Entry) kv).getKey());
+            parm[i] = ((Map.Entry) kv).getValue();
+            i++;
+        }
+
+        String[] updateNames = null;
+        if(onDuplicateKeyUpdate)
+        {
+            updateNames = new String[updateFields.size()];
+            int j = 0;
+            for(Object o : updateFields)
+            {
+                updateNames[j++] = String.valueOf(o);
+                parm[i++] = cols.get(o);
+            }
+        }
+        return new BoundSql(insertSql(dbType, table, colNames, onDuplicateKeyUpdate, updateNames), parm);
+    }
+
+    /**
+     * binds a column-map and a key-map to its cached update statement, keys with null or empty values are skipped.
+     *
+     */
+    public static BoundSql bindUpdate(int dbType, String table, Map cols, Map<String,Object> keyCols)
+    {
+        String[] setNames = new String[cols.size()];
+        Object[] parm = new Object[cols.size()+keyCols.size()];
+        int i = 0;
+        for(Object kv : cols.entrySet())
+        {
+            setNames[i] = String.valueOf(((Map.Entry) kv).getKey());
+            parm[i] = ((Map.Entry) kv).getValue();
+            i++;
+        }
+
+        String[] whereNames = new String[keyCols.size()];
+        int j = 0;
+        for(Map.Entry<String,Object> kv : keyCols.entrySet())
+        {
+            Object v = kv.getValue();
+            if(v!=null && !((v instanceof String) && (v.toString().equals(""))))
+            {
+                whereNames[j++] = kv.getKey();
+                parm[i++] = v;
+            }
+        }
+        if(j==0)
+        {
+            throw new IllegalArgumentException("no key values for update");
+        }
+        if(j<whereNames.length)
+        {
+            whereNames = Arrays.copyOf(whereNames, j);
+            parm = Arrays.copyOf(parm, i);
+        }
+        return new BoundSql(updateSql(dbType, table, setNames, whereNames), parm);
+    }
+
+    public static class BoundSql
+    {
+        private final String sql;
+        private final Object[] args;
+
+        public BoundSql(String sql, Object[] args)
+        {
+            this.sql = sql;
+            this.args = args;
+        }
+
+        public String getSql()
+        {
+            return sql;
+        }
+
+        public Object[] getArgs()
+        {
+            return args;
+        }
+    }
+
+    static void cache(ShapeKey key, String sql)
+    {
+        if(shapeCache.size() >= SHAPE_CACHE_SIZE)
+        {
+            shapeCache.clear();
+            parameterShapes.clear();
+        }
+        shapeCache.put(key, sql);
+    }
+
+    public static void clear()
+    {
+        shapeCache.clear();
+        parameterShapes.clear();
+    }
+
+    /**
+     * returns table and column per parameter of a statement built here, or null.
+     *
+     */
+    public static ParameterShape parameterShapeOf(String sql)
+    {
+        return parameterShapes.get(sql);
+    }
+
+    /**
+     * records the column of each parameter, the first columns repeated for multi-row inserts.
+     *
+     */
+    static void register(String sql, int dbType, String table, String[] cols, String[] extraCols, int repeat)
+    {
+        int n = cols.length*repeat + (extraCols==null ? 0 : extraCols.length);
+        String[] columns = new String[n];
+        int i = 0;
+        for(int r = 0; r < repeat; r++)
+        {
+            System.arraycopy(cols, 0, columns, i, cols.length);
+            i += cols.length;
+        }
+        if(extraCols!=null)
+        {
+            System.arraycopy(extraCols, 0, columns, i, extraCols.length);
+        }
+        parameterShapes.put(sql, new ParameterShape(dbType, table, columns));
+    }
+
+    public static class ParameterShape
+    {
+        private final int dbType;
+        private final String table;
+        private final String[] columns;
+
+        ParameterShape(int dbType, String table, String[] columns)
+        {
+            this.dbType = dbType;
+            this.table = table;
+            this.columns = columns;
+        }
+
+        public int getDbType()
+        {
+            return dbType;
+        }
+
+        public String getTable()
+        {
+            return table;
+        }
+
+        public String[] getColumns()
+        {
+            return columns;
+        }
+    }
+
+    static String buildInsertSql(int dbType, String table, String[] cols, boolean onDuplicateKeyUpdate, String[] updateCols)
+    {
+        StringBuilder qq=new StringBuilder();
+        qq.append("INSERT INTO "+table+" ( ");
+        appendList(qq, cols, "");
+        qq.append(" ) VALUES (");
+        appendPlaceholders(qq, cols.length);
+        qq.append(" ) ");
+
+        if(onDuplicateKeyUpdate)
+        {
+            switch(dbType)
+            {
+                case DB_TYPE_POSTGRES:
+                case DB_TYPE_SQLITE:
+                {
+                    appendConflictTarget(qq, cols, updateCols);
+                    qq.append(" DO UPDATE SET ");
+                    appendList(qq, updateCols, "=?");
+                    break;
+                }
+                case DB_TYPE_MYSQL:
+                case DB_TYPE_CRATE:
+                {
+                    qq.append(" ON DUPLICATE KEY UPDATE ");
+                    appendList(qq, updateCols, "=?");
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("DB TYPE NOT UPSERT-ABLE");
+            }
+        }
+        return qq.toString();
+    }
+
+    static String buildInsertValuesSql(int dbType, String table, String[] cols, int rows, boolean onDuplicateKeyUpdate, String[] updateCols)
+    {
+        StringBuilder qq=new StringBuilder();
+        qq.append("INSERT INTO "+table+" ( ");
+        appendList(qq, cols, "");
+        qq.append(" ) VALUES ");
+        for(int r = 0; r < rows; r++)
+        {
+            if(r>0)
+            {
+                qq.append(",");
+            }
+            qq.append("(");
+            appendPlaceholders(qq, cols.length);
+            qq.append(")");
+        }
+
+        if(onDuplicateKeyUpdate)
+        {
+            switch(dbType)
+            {
+                case DB_TYPE_POSTGRES:
+                case DB_TYPE_SQLITE:
+                {
+                    appendConflictTarget(qq, cols, updateCols);
+                    qq.append(" DO UPDATE SET ");
+                    for(int i = 0; i < updateCols.length; i++)
+                    {
+                        if(i>0) qq.append(", ");
+                        qq.append(updateCols[i]+"=EXCLUDED."+updateCols[i]);
+                    }
+                    break;
+                }
+                case DB_TYPE_MYSQL:
+                case DB_TYPE_CRATE:
+                {
+                    qq.append(" ON DUPLICATE KEY UPDATE ");
+                    for(int i = 0; i < updateCols.length; i++)
+                    {
+                        if(i>0) qq.append(", ");
+                        qq.append(updateCols[i]+"=VALUES("+updateCols[i]+")");
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("DB TYPE NOT UPSERT-ABLE");
+            }
+        }
+        return qq.toString();
+    }
+
+    static String buildUpdateSql(int dbType, String table, String[] setCols, String[] whereCols)
+    {
+        StringBuilder qq=new StringBuilder();
+        qq.append("UPDATE "+table+" SET ");
+        appendList(qq, setCols, "=?");
+        appendWhere(qq, whereCols);
+        return qq.toString();
+    }
+
+    static String buildSelectSql(int dbType, String table, String[] whereCols)
+    {
+        StringBuilder qq=new StringBuilder();
+        qq.append("SELECT * FROM "+table);
+        appendWhere(qq, whereCols);
+        return qq.toString();
+    }
+
+    static void appendWhere(StringBuilder qq, String[] whereCols)
+    {
+        qq.append(" WHERE ");
+        for(int i = 0; i < whereCols.length; i++)
+        {
+            if(i>0)
+            {
+                qq.append(" AND ");
+            }
+            qq.append("("+whereCols[i]+" = ?)");
+        }
+    }
+
+    static void appendList(StringBuilder qq, String[] cols, String suffix)
+    {
+        for(int i = 0; i < cols.length; i++)
+        {
+            if(i>0)
+            {
+                qq.append(suffix.length()==0 ? "," : ", ");
+            }
+            qq.append(cols[i]);
+            qq.append(suffix);
+        }
+    }
+
+    static void appendConflictTarget(StringBuilder qq, String[] cols, String[] updateCols)
+    {
+        qq.append(" ON CONFLICT ( ");
+        boolean ff = true;
+        for(String k : cols)
+        {
+            if(!Arrays.asList(updateCols).contains(k))
+            {
+                if(!ff) qq.append(",");
+                qq.append(k);
+                ff=false;
+            }
+        }
+        if(ff)
+        {
+            throw new IllegalArgumentException("no conflict columns left, all columns are updated");
+        }
+        qq.append(" ) ");
+    }
+
+    static void appendPlaceholders(StringBuilder qq, int count)
+    {
+        for(int i = 0; i < count; i++)
+        {
+            if(i>0)
+            {
+                qq.append(",");
+            }
+            qq.append("?");
+        }
+    }
+
+    static final class ShapeKey
+    {
+        final int kind;
+        final int dbType;
+        final String table;
+        final String[] cols;
+        final String[] extraCols;
+        final boolean flag;
+        final int rows;
+        final int hash;
+
+        ShapeKey(int kind, int dbType, String table, String[] cols, String[] extraCols, boolean flag, int rows)
+        {
+            this.kind = kind;
+            this.dbType = dbType;
+            this.table = table;
+            this.cols = cols;
+            this.extraCols = extraCols;
+            this.flag = flag;
+            this.rows = rows;
+
+            int h = kind;
+            h = 31*h + dbType;
+            h = 31*h + table.hashCode();
+            h = 31*h + Arrays.hashCode(cols);
+            h = 31*h + Arrays.hashCode(extraCols);
+            h = 31*h + (flag ? 1 : 0);
+            h = 31*h + rows;
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if(this == o)
+            {
+                return true;
+            }
+            if(!(o instanceof ShapeKey))
+            {
+                return false;
+            }
+            ShapeKey k = (ShapeKey) o;
+            return this.hash == k.hash
+                    && this.kind == k.kind
+                    && this.dbType == k.dbType
+                    && this.flag == k.flag
+                    && this.rows == k.rows
+                    && this.table.equals(k.table)
+                    && Arrays.equals(this.cols, k.cols)
+                    && Arrays.equals(this.extraCols, k.extraCols);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2017. terefang@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.terefang.jdao;
+
+import org.apache.commons.dbutils.DbUtils;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * columns (name, jdbc type, nullability) and primary key of a table, read from DatabaseMetaData.
+ *
+ */
+public class TableMetadata
+{
+	private final String schemaName;
+	private final String tableName;
+	private final List<Column> columns;
+	private final List<String> primaryKey;
+	private final Map<String, Column> index = new HashMap<String, Column>();
+
+	TableMetadata(String schemaName, String tableName, List<Column> columns, List<String> primaryKey)
+	{
+		this.schemaName = schemaName;
+		this.tableName = tableName;
+		this.columns = Collections.unmodifiableList(columns);
+		this.primaryKey = Collections.unmodifiableList(primaryKey);
+		for(Column column : columns)
+		{
+			this.index.put(column.getName().toLowerCase(), column);
+		}
+	}
+
+	public String getSchemaName()
+	{
+		return schemaName;
+	}
+
+	public String getTableName()
+	{
+		return tableName;
+	}
+
+	/**
+	 * columns in ordinal order.
+	 *
+	 */
+	public List<Column> getColumns()
+	{
+		return columns;
+	}
+
+	public List<String> getColumnNames()
+	{
+		List<String> ret = new ArrayList<String>(this.columns.size());
+		for(Column column : this.columns)
+		{
+			ret.add(column.getName());
+		}
+		return ret;
+	}
+
+	/**
+	 * returns the column by name (case-insensitive) or null.
+	 *
+	 */
+	public Column getColumn(String name)
+	{
+		return name==null ? null : this.index.get(name.toLowerCase());
+	}
+
+	public boolean hasColumn(String name)
+	{
+		return this.getColumn(name)!=null;
+	}
+
+	/**
+	 * primary key columns in key order, empty if the table has none.
+	 *
+	 */
+	public List<String> getPrimaryKey()
+	{
+		return primaryKey;
+	}
+
+	public static class Column
+	{
+		private final String name;
+		private final int jdbcType;
+		private final String typeName;
+		private final boolean nullable;
+		private final int ordinal;
+		private boolean primaryKey = false;
+
+		Column(String name, int jdbcType, String typeName, boolean nullable, int ordinal)
+		{
+			this.name = name;
+			this.jdbcType = jdbcType;
+			this.typeName = typeName;
+			this.nullable = nullable;
+			this.ordinal = ordinal;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * one of java.sql.Types.
+		 *
+		 */
+		public int getJdbcType()
+		{
+			return jdbcType;
+		}
+
+		public String getTypeName()
+		{
+			return typeName;
+		}
+
+		public boolean isNullable()
+		{
+			return nullable;
+		}
+
+		public int getOrdinal()
+		{
+			return ordinal;
+		}
+
+		public boolean isPrimaryKey()
+		{
+			return primaryKey;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name+" "+typeName+(nullable ? "" : " NOT NULL")+(primaryKey ? " PK" : "");
+		}
+	}
+
+	/**
+	 * reads the metadata of the table, or returns null if there is no such table.
+	 * <p>
+	 * names are tried as given, upper- and lowercased, since databases differ in how they store unquoted identifiers.
+	 * without a schema name the current schema of the connection is used.
+	 *
+	 */
+	public static TableMetadata load(int dbType, Connection conn, String schemaName, String tableName) throws SQLException
+	{
+		DatabaseMetaData md = conn.getMetaData();
+		if(schemaName==null && dbType!=JDAO.DB_TYPE_MYSQL && dbType!=JDAO.DB_TYPE_SQLITE)
+		{
+			schemaName = currentSchema(conn);
+		}
+
+		Set<String> tried = new HashSet<String>();
+		for(int i = 0; i < 3; i++)
+		{
+			String schema = schemaName==null ? null : (i==0 ? schemaName : i==1 ? schemaName.toUpperCase() : schemaName.toLowerCase());
+			String table = i==0 ? tableName : i==1 ? tableName.toUpperCase() : tableName.toLowerCase();
+			if(!tried.add(schema+"."+table))
+			{
+				continue;
+			}
+			TableMetadata ret = load(dbType, md, schema, table);
+			if(ret!=null)
+			{
+				return ret;
+			}
+		}
+		return null;
+	}
+
+	static TableMetadata load(int dbType, DatabaseMetaData md, String schemaName, String tableName) throws SQLException
+	{
+		// mysql exposes databases as catalogs
+		String catalog = null;
+		String schema = schemaName;
+		if(dbType==JDAO.DB_TYPE_MYSQL)
+		{
+			catalog = schemaName;
+			schema = null;
+		}
+
+		String escape = md.getSearchStringEscape();
+		List<Column> columns = new ArrayList<Column>();
+		String foundCatalog = null;
+		String foundSchema = null;
+		String foundTable = null;
+		ResultSet rs = md.getColumns(catalog, escapePattern(schema, escape), escapePattern(tableName, escape), null);
+		try
+		{
+			while(rs.next())
+			{
+				String rsSchema = rs.getString("TABLE_SCHEM");
+				String rsTable = rs.getString("TABLE_NAME");
+				// patterns may match more than the exact name
+				if(!tableName.equals(rsTable) || (schema!=null && rsSchema!=null && !schema.equals(rsSchema)))
+				{
+					continue;
+				}
+				if(foundTable==null)
+				{
+					foundCatalog = rs.getString("TABLE_CAT");
+					foundSchema = rsSchema;
+					foundTable = rsTable;
+				}
+				else
+				if(foundSchema!=null && !foundSchema.equals(rsSchema))
+				{
+					// same table name in another schema
+					continue;
+				}
+				columns.add(new Column(rs.getString("COLUMN_NAME"),
+						rs.getInt("DATA_TYPE"),
+						rs.getString("TYPE_NAME"),
+						rs.getInt("NULLABLE")!=DatabaseMetaData.columnNoNulls,
+						rs.getInt("ORDINAL_POSITION")));
+			}
+		}
+		finally
+		{
+			DbUtils.closeQuietly(rs);
+		}
+		if(columns.isEmpty())
+		{
+			return null;
+		}
+		Collections.sort(columns, new Comparator<Column>()
+		{
+			@Override
+			public int compare(Column a, Column b)
+			{
+				return a.ordinal<b.ordinal ? -1 : a.ordinal==b.ordinal ? 0 : 1;
+			}
+		});
+
+		TreeMap<Integer, String> keys = new TreeMap<Integer, String>();
+		rs = md.getPrimaryKeys(foundCatalog, foundSchema, foundTable);
+		try
+		{
+			while(rs.next())
+			{
+				keys.put(rs.getInt("KEY_SEQ"), rs.getString("COLUMN_NAME"));
+			}
+		}
+		finally
+		{
+			DbUtils.closeQuietly(rs);
+		}
+
+		TableMetadata ret = new TableMetadata(dbType==JDAO.DB_TYPE_MYSQL ? foundCatalog : foundSchema, foundTable, columns, new ArrayList<String>(keys.values()));
+		for(String key : ret.primaryKey)
+		{
+			Column column = ret.getColumn(key);
+			if(column!=null)
+			{
+				column.primaryKey = true;
+			}
+		}
+		return ret;
+	}
+
+	static String currentSchema(Connection conn)
+	{
+		try
+		{
+			return conn.getSchema();
+		}
+		catch(Throwable xe)
+		{
+			// pre jdbc 4.1 driver
+			return null;
+		}
+	}
+
+	static String escapePattern(String name, String escape)
+	{
+		if(name==null || escape==null || escape.length()==0)
+		{
+			return name;
+		}
+		StringBuilder sb = new StringBuilder(name.length()+4);
+		for(int i = 0; i < name.length(); i++)
+		{
+			char c = name.charAt(i);
+			if(c=='_' || c=='%')
+			{
+				sb.append(escape);
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2017. terefang@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.terefang.jdao;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * executors for blocking jdao work, java 21 layer of the multi-release jar.
+ * <p>
+ * every task gets its own virtual thread, at most size of them run at once. the gate is a semaphore
+ * taken before the task borrows a connection, so waiting tasks park on it instead of contending on the
+ * synchronized pool (dbcp 1.4), which would pin their carrier threads.
+ *
+ */
+public class JdaoExecutors
+{
+	/**
+	 * true if tasks run on virtual threads.
+	 *
+	 */
+	public static boolean isVirtual()
+	{
+		return true;
+	}
+
+	/**
+	 * creates a thread-per-task executor of virtual threads running at most size tasks at once, size<=0 for no bound.
+	 *
+	 */
+	public static ExecutorService newTaskExecutor(String name, int size)
+	{
+		ExecutorService executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name+"-", 1).factory());
+		return size<=0 ? executor : new BoundedExecutor(executor, size);
+	}
+
+	static final class BoundedExecutor extends AbstractExecutorService
+	{
+		final ExecutorService delegate;
+		final Semaphore permits;
+
+		BoundedExecutor(ExecutorService delegate, int size)
+		{
+			this.delegate = delegate;
+			this.permits = new Semaphore(size);
+		}
+
+		@Override
+		public void execute(Runnable task)
+		{
+			this.delegate.execute(() -> {
+				// uninterruptibly, a task that never runs would leave its future incomplete
+				this.permits.acquireUninterruptibly();
+				try
+				{
+					task.run();
+				}
+				finally
+				{
+					this.permits.release();
+				}
+			});
+		}
+
+		@Override
+		public void shutdown()
+		{
+			this.delegate.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow()
+		{
+			return this.delegate.shutdownNow();
+		}
+
+		@Override
+		public boolean isShutdown()
+		{
+			return this.delegate.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated()
+		{
+			return this.delegate.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+		{
+			return this.delegate.awaitTermination(timeout, unit);
+		}
+	}
+}
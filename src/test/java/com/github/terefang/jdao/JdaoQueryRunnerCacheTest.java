@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2017. terefang@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.terefang.jdao;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * result cache behaviour through JdaoQueryRunner, on an in-memory h2 database shared by two runners.
+ *
+ */
+public class JdaoQueryRunnerCacheTest
+{
+	static int dbCount = 0;
+
+	JdbcDataSource ds;
+	Connection keepAlive;
+	JDAO writer;
+	JDAO reader;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		this.ds = new JdbcDataSource();
+		this.ds.setURL("jdbc:h2:mem:jdao_cache_"+(dbCount++));
+		this.keepAlive = this.ds.getConnection();
+
+		JdaoQueryRunner writerRunner = new JdaoQueryRunner(this.ds);
+		writerRunner.setResultCache(new ResultCache());
+		this.writer = new JDAO(writerRunner);
+		this.writer.setDbType(JDAO.DB_TYPE_H2);
+
+		JdaoQueryRunner readerRunner = new JdaoQueryRunner(this.ds);
+		readerRunner.setResultCache(new ResultCache());
+		this.reader = new JDAO(readerRunner);
+		this.reader.setDbType(JDAO.DB_TYPE_H2);
+
+		this.writer.execute("CREATE TABLE kv (s VARCHAR(20), k VARCHAR(20), v VARCHAR(20), PRIMARY KEY (s, k))");
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		this.keepAlive.close();
+	}
+
+	static Map<String,String> kv(String... kv)
+	{
+		Map<String,String> ret = new LinkedHashMap<String,String>();
+		for(int i = 0; i < kv.length; i += 2)
+		{
+			ret.put(kv[i], kv[i+1]);
+		}
+		return ret;
+	}
+
+	@Test
+	public void updateAndBatchDropDependentEntries() throws Exception
+	{
+		JdaoQueryRunner runner = (JdaoQueryRunner) this.reader.getQueryRunner();
+		ResultCache cache = runner.getResultCache();
+		String sql = "SELECT k,v FROM kv WHERE s=?";
+		this.reader.execute("CREATE TABLE other (x INT)");
+		this.reader.queryForKvMap(sql, "S");
+		this.reader.queryForList("SELECT * FROM other");
+		assertEquals(2, cache.size());
+
+		runner.update("INSERT INTO kv (s, k, v) VALUES (?, ?, ?)", "S", "a", "1");
+		assertEquals(1, cache.size());
+		assertEquals(kv("a", "1"), this.reader.queryForKvMap(sql, "S"));
+
+		runner.batch("INSERT INTO kv (s, k, v) VALUES (?, ?, ?)", new Object[][] { { "S", "b", "2" }, { "S", "c", "3" } });
+		assertEquals(1, cache.size());
+		assertEquals(kv("a", "1", "b", "2", "c", "3"), this.reader.queryForKvMap(sql, "S"));
+		assertEquals(0, this.reader.queryForList("SELECT * FROM other").size());
+	}
+
+	@Test
+	public void afterCommitInvalidatesAgain() throws Exception
+	{
+		JdaoQueryRunner runner = (JdaoQueryRunner) this.reader.getQueryRunner();
+		String sql = "SELECT k,v FROM kv WHERE s=?";
+		Connection conn = this.ds.getConnection();
+		try
+		{
+			conn.setAutoCommit(false);
+			runner.update(conn, "INSERT INTO kv (s, k, v) VALUES (?, ?, ?)", "S", "a", "1");
+
+			// another connection reads and caches the state before the commit
+			assertEquals(kv(), this.reader.queryForKvMap(sql, "S"));
+			assertEquals(1, runner.getResultCache().size());
+
+			conn.commit();
+			runner.afterCommit(conn);
+			assertEquals(0, runner.getResultCache().size());
+			assertEquals(kv("a", "1"), this.reader.queryForKvMap(sql, "S"));
+		}
+		finally
+		{
+			conn.close();
+		}
+	}
+
+	@Test
+	public void diffOnlySeesWritesOfOtherRunners() throws Exception
+	{
+		String scopeSql = "SELECT k,v FROM kv WHERE s=?";
+		this.reader.insertKvMap("kv", "s", "k", "v", "S", kv("a", "1", "b", "2"), false, true);
+		// the reader caches the scope
+		assertEquals(kv("a", "1", "b", "2"), this.reader.queryForKvMap(scopeSql, "S"));
+
+		// another runner adds c and removes b, the readers cache does not know
+		this.writer.insertKvMap("kv", "s", "k", "v", "S", kv("a", "1", "c", "3"), false, true);
+		assertEquals(kv("a", "1", "b", "2"), this.reader.queryForKvMap(scopeSql, "S"));
+
+		// b must be inserted again, c updated
+		assertEquals(2, this.reader.insertKvMap("kv", "s", "k", "v", "S", kv("a", "1", "b", "2", "c", "4"), false, true));
+		assertEquals(kv("a", "1", "b", "2", "c", "4"), this.writer.queryForKvMap(scopeSql, "S"));
+	}
+}
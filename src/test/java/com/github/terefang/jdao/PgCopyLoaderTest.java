@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2017. terefang@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.terefang.jdao;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * encoding tests run always, the load tests need a postgresql database given as
+ * -Djdao.test.pg.url=jdbc:postgresql://host:port/db?user=..&password=.. (tables "copy_test*" are dropped and created).
+ *
+ */
+public class PgCopyLoaderTest
+{
+	static final String PG_URL = System.getProperty("jdao.test.pg.url");
+
+	Connection conn;
+	JDAO dao;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		if(PG_URL==null)
+		{
+			return;
+		}
+		this.conn = DriverManager.getConnection(PG_URL);
+		this.dao = new JDAO(this.conn, new JdaoQueryRunner());
+		this.dao.setDbType(JDAO.DB_TYPE_POSTGRES);
+		this.dao.execute("DROP TABLE IF EXISTS copy_test");
+		this.dao.execute("CREATE TABLE copy_test (id BIGSERIAL PRIMARY KEY, n SERIAL, name TEXT, amt NUMERIC(12,4), ok BOOLEAN, ts TIMESTAMP, b BYTEA)");
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		if(this.conn!=null)
+		{
+			this.conn.close();
+		}
+	}
+
+	static String text(Object value)
+	{
+		StringBuilder sb = new StringBuilder();
+		PgCopyLoader.appendText(sb, value);
+		return sb.toString();
+	}
+
+	@Test
+	public void textEscapes()
+	{
+		assertEquals("\\N", text(null));
+		assertEquals("a\\tb\\nc\\rd\\\\e", text("a\tb\nc\rd\\e"));
+		assertEquals("t", text(Boolean.TRUE));
+		assertEquals("\\\\x01ff", text(new byte[] { 1, (byte) 0xff }));
+		assertEquals("100", text(new BigDecimal("1E+2")));
+	}
+
+	static short[] numeric(String value)
+	{
+		PgCopyLoader.CopyBuffer buffer = new PgCopyLoader.CopyBuffer(64);
+		PgCopyLoader.writeNumeric(buffer, new BigDecimal(value));
+		ByteBuffer bb = ByteBuffer.wrap(buffer.toByteArray());
+		int len = bb.getInt();
+		short[] ret = new short[len/2];
+		for(int i = 0; i < ret.length; i++)
+		{
+			ret[i] = bb.getShort();
+		}
+		return ret;
+	}
+
+	@Test
+	public void numericEncoding()
+	{
+		// ndigits, weight, sign, dscale, digits
+		assertArrayEquals(new short[] { 0, 0, 0, 0 }, numeric("0"));
+		assertArrayEquals(new short[] { 0, 0, 0, 3 }, numeric("0.000"));
+		assertArrayEquals(new short[] { 3, 1, 0, 3, 1, 2345, 6780 }, numeric("12345.678"));
+		assertArrayEquals(new short[] { 1, 1, 0, 0, 1 }, numeric("10000"));
+		assertArrayEquals(new short[] { 1, -1, 0x4000, 4, 5 }, numeric("-0.0005"));
+	}
+
+	@Test
+	public void serialTypes()
+	{
+		assertEquals("int8", PgCopyLoader.binaryTypeOf("bigserial"));
+		assertEquals("int4", PgCopyLoader.binaryTypeOf("serial"));
+		assertEquals("int2", PgCopyLoader.binaryTypeOf("smallserial"));
+		assertEquals("numeric", PgCopyLoader.binaryTypeOf("NUMERIC"));
+	}
+
+	List<Map> rows(int count)
+	{
+		List<Map> ret = new ArrayList<Map>();
+		for(int i = 1; i <= count; i++)
+		{
+			Map row = new LinkedHashMap();
+			row.put("id", (long) i);
+			row.put("n", i);
+			row.put("name", "row\t"+i);
+			row.put("amt", new BigDecimal(i+".25"));
+			row.put("ok", i%2==0);
+			row.put("ts", java.sql.Timestamp.valueOf("2024-02-29 12:34:56.123456"));
+			row.put("b", new byte[] { (byte) i });
+			ret.add(row);
+		}
+		return ret;
+	}
+
+	@Test
+	public void textAndBinaryLoadTheSameRows() throws Exception
+	{
+		assumeTrue(PG_URL!=null);
+		assertEquals(10L, this.dao.copyList("copy_test", rows(10)));
+		List<Map<String,Object>> text = this.dao.queryForMapList("SELECT id, n, name, amt, ok, ts, encode(b, 'hex') AS b FROM copy_test ORDER BY id");
+
+		this.dao.execute("TRUNCATE copy_test");
+		PgCopyLoader loader = this.dao.copyLoader("copy_test");
+		loader.setFormat(PgCopyLoader.FORMAT_BINARY);
+		loader.setBufferSize(64);
+		assertEquals(10L, loader.load(rows(10)));
+		List<Map<String,Object>> binary = this.dao.queryForMapList("SELECT id, n, name, amt, ok, ts, encode(b, 'hex') AS b FROM copy_test ORDER BY id");
+
+		assertEquals(text, binary);
+		assertEquals("row\t3", binary.get(2).get("name"));
+	}
+
+	@Test
+	public void mergeOnPrimaryKeyWithMixedCaseColumns() throws Exception
+	{
+		assumeTrue(PG_URL!=null);
+		this.dao.copyList("copy_test", rows(3));
+
+		List<Map> update = new ArrayList<Map>();
+		update.add(JDAO.toMap("ID", 2L, "Name", "merged"));
+		update.add(JDAO.toMap("ID", 7L, "Name", "new"));
+		PgCopyLoader loader = this.dao.copyLoader("copy_test");
+		loader.setFormat(PgCopyLoader.FORMAT_BINARY);
+		loader.setOnDuplicateKeyUpdate(true, Arrays.asList("Name"));
+		assertEquals(2L, loader.load(update));
+
+		assertEquals("merged", this.dao.queryForScalar("SELECT name FROM copy_test WHERE id = 2"));
+		assertEquals("new", this.dao.queryForScalar("SELECT name FROM copy_test WHERE id = 7"));
+		assertEquals(4L, ((Number) this.dao.queryForScalar("SELECT COUNT(*) FROM copy_test")).longValue());
+	}
+
+	@Test
+	public void failedMergeInTransactionKeepsTheError() throws Exception
+	{
+		assumeTrue(PG_URL!=null);
+		this.dao.copyList("copy_test", rows(1));
+		this.conn.setAutoCommit(false);
+		try
+		{
+			// the same key twice makes ON CONFLICT DO UPDATE fail and aborts the transaction
+			List<Map> update = new ArrayList<Map>();
+			update.add(JDAO.toMap("id", 1L, "name", "a"));
+			update.add(JDAO.toMap("id", 1L, "name", "b"));
+			this.dao.copyList("copy_test", update.iterator(), true, null);
+			fail("merge should fail");
+		}
+		catch(SQLException xe)
+		{
+			assertTrue(xe.getMessage(), xe.getMessage().contains("second time"));
+		}
+		finally
+		{
+			this.conn.rollback();
+			this.conn.setAutoCommit(true);
+		}
+	}
+}
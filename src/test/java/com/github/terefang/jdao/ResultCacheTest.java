@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2017. terefang@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.terefang.jdao;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ResultCacheTest
+{
+	static Set<String> tables(String... names)
+	{
+		return new HashSet<String>(Arrays.asList(names));
+	}
+
+	static ResultCache.Key key(String sql)
+	{
+		return ResultCache.keyFor(JDAO.DB_TYPE_ANSI, sql, null, JDAO.mapListHandler);
+	}
+
+	static List<Map<String,Object>> rows(int n)
+	{
+		List<Map<String,Object>> ret = new ArrayList<Map<String,Object>>();
+		for(int i = 0; i < n; i++)
+		{
+			Map<String,Object> row = new LinkedHashMap<String,Object>();
+			row.put("id", i);
+			ret.add(row);
+		}
+		return ret;
+	}
+
+	static void put(ResultCache cache, ResultCache.Key key, Object value)
+	{
+		cache.put(key, value, cache.generation());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsedByEntries()
+	{
+		ResultCache cache = new ResultCache(2, 0L, 0L, TimeUnit.MILLISECONDS);
+		put(cache, key("SELECT * FROM a"), rows(1));
+		put(cache, key("SELECT * FROM b"), rows(1));
+		assertNotNull(cache.get(key("SELECT * FROM a")));
+		put(cache, key("SELECT * FROM c"), rows(1));
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertNotNull(cache.get(key("SELECT * FROM a")));
+		assertNull(cache.get(key("SELECT * FROM b")));
+		assertNotNull(cache.get(key("SELECT * FROM c")));
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsedByWeight()
+	{
+		ResultCache cache = new ResultCache(100, 5L, 0L, TimeUnit.MILLISECONDS);
+		put(cache, key("SELECT * FROM a"), rows(3));
+		put(cache, key("SELECT * FROM b"), rows(1));
+		put(cache, key("SELECT * FROM c"), rows(3));
+
+		assertNull(cache.get(key("SELECT * FROM a")));
+		assertNotNull(cache.get(key("SELECT * FROM b")));
+		assertNotNull(cache.get(key("SELECT * FROM c")));
+
+		// a single result heavier than the limit is still kept
+		put(cache, key("SELECT * FROM d"), rows(10));
+		assertEquals(1, cache.size());
+		assertNotNull(cache.get(key("SELECT * FROM d")));
+	}
+
+	@Test
+	public void expiresAfterTtl() throws Exception
+	{
+		ResultCache cache = new ResultCache(10, 0L, 20L, TimeUnit.MILLISECONDS);
+		put(cache, key("SELECT * FROM a"), rows(1));
+		assertNotNull(cache.get(key("SELECT * FROM a")));
+		Thread.sleep(50L);
+		assertNull(cache.get(key("SELECT * FROM a")));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void getReturnsCopies()
+	{
+		ResultCache cache = new ResultCache();
+		List<Map<String,Object>> value = rows(2);
+		put(cache, key("SELECT * FROM a"), value);
+		// the stored value is a copy as well
+		value.get(0).put("id", 99);
+
+		List<Map<String,Object>> hit = (List<Map<String,Object>>) cache.get(key("SELECT * FROM a"));
+		assertEquals(0, hit.get(0).get("id"));
+		hit.get(0).put("id", 42);
+		hit.remove(1);
+
+		hit = (List<Map<String,Object>>) cache.get(key("SELECT * FROM a"));
+		assertEquals(rows(2), hit);
+	}
+
+	@Test
+	public void invalidationDuringLoadSuppressesPut()
+	{
+		ResultCache cache = new ResultCache();
+		long generation = cache.generation();
+		// a write lands while the result is being read
+		cache.invalidateTable("b");
+		cache.put(key("SELECT * FROM a"), rows(1), generation);
+		assertNull(cache.get(key("SELECT * FROM a")));
+
+		cache.put(key("SELECT * FROM a"), rows(1), cache.generation());
+		assertNotNull(cache.get(key("SELECT * FROM a")));
+	}
+
+	@Test
+	public void invalidateTableDropsDependentEntries()
+	{
+		ResultCache cache = new ResultCache();
+		put(cache, key("SELECT * FROM a JOIN b ON a.id = b.id"), rows(1));
+		put(cache, key("SELECT * FROM c"), rows(1));
+		put(cache, key("SELECT 1"), rows(1));
+		cache.invalidateSql("UPDATE b SET x = 1");
+
+		assertNull(cache.get(key("SELECT * FROM a JOIN b ON a.id = b.id")));
+		assertNull(cache.get(key("SELECT 1")));
+		assertNotNull(cache.get(key("SELECT * FROM c")));
+
+		cache.invalidateSql("CREATE TABLE d (x INT)");
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void readTablesFrom()
+	{
+		assertEquals(tables("t"), ResultCache.readTables("SELECT * FROM t WHERE id = ?"));
+		assertEquals(tables("t"), ResultCache.readTables("select a, b from T order by a"));
+	}
+
+	@Test
+	public void readTablesJoin()
+	{
+		assertEquals(tables("a", "b", "c"), ResultCache.readTables("SELECT * FROM a JOIN b ON a.id = b.id LEFT OUTER JOIN c ON c.id = b.id WHERE a.x = 1"));
+	}
+
+	@Test
+	public void readTablesCommaList()
+	{
+		assertEquals(tables("a", "b", "c"), ResultCache.readTables("SELECT * FROM a, b x, c AS y WHERE a.id = x.id"));
+		assertEquals(tables("t1", "t2", "t3"), ResultCache.readTables("SELECT * FROM t1 JOIN t2 ON t1.id = t2.id, t3"));
+	}
+
+	@Test
+	public void readTablesCommaAfterFromEnds()
+	{
+		// commas in the select list or after WHERE are no table separators
+		assertEquals(tables("t"), ResultCache.readTables("SELECT a, b FROM t WHERE a IN (1, 2) ORDER BY a, b"));
+	}
+
+	@Test
+	public void readTablesSubquery()
+	{
+		assertEquals(tables("a", "b"), ResultCache.readTables("SELECT * FROM (SELECT * FROM a WHERE z = 1) x, b WHERE x.id = b.id"));
+		assertEquals(tables("a", "b"), ResultCache.readTables("SELECT * FROM a WHERE id IN (SELECT a_id FROM b)"));
+		assertEquals(tables("a", "b", "c"), ResultCache.readTables("SELECT * FROM a JOIN (SELECT id FROM b GROUP BY id) s ON s.id = a.id, c"));
+	}
+
+	@Test
+	public void readTablesQuotedAndQualified()
+	{
+		assertEquals(tables("my table"), ResultCache.readTables("SELECT * FROM \"My Table\""));
+		assertEquals(tables("t"), ResultCache.readTables("SELECT * FROM `db`.`t`"));
+		assertEquals(tables("t", "u"), ResultCache.readTables("SELECT * FROM [dbo].[t], public.u"));
+		assertEquals(tables("t"), ResultCache.readTables("SELECT * FROM \"s.x\".t"));
+	}
+
+	@Test
+	public void readTablesIgnoresLiterals()
+	{
+		assertEquals(tables("t"), ResultCache.readTables("SELECT * FROM t WHERE name = 'FROM x, y'"));
+	}
+
+	@Test
+	public void readTablesWithoutTable()
+	{
+		assertEquals(tables(ResultCache.ANY_TABLE), ResultCache.readTables("SELECT 1"));
+		assertEquals(tables(ResultCache.ANY_TABLE), ResultCache.readTables("CALL proc(?)"));
+	}
+
+	@Test
+	public void writeTable()
+	{
+		assertEquals("t", ResultCache.writeTable("INSERT INTO t (a) VALUES (?)"));
+		assertEquals("t", ResultCache.writeTable("  insert ignore into T (a) values (?)"));
+		assertEquals("t", ResultCache.writeTable("REPLACE INTO t VALUES (1)"));
+		assertEquals("t", ResultCache.writeTable("UPSERT INTO t VALUES (1)"));
+		assertEquals("t", ResultCache.writeTable("MERGE INTO s.t USING u ON (t.id = u.id)"));
+		assertEquals("t", ResultCache.writeTable("UPDATE t SET a = ? WHERE id = ?"));
+		assertEquals("t", ResultCache.writeTable("UPDATE ONLY t SET a = 1"));
+		assertEquals("t", ResultCache.writeTable("DELETE FROM t WHERE id = ?"));
+		assertEquals("t", ResultCache.writeTable("TRUNCATE TABLE t"));
+		assertEquals("my table", ResultCache.writeTable("DELETE FROM \"My Table\""));
+		assertEquals("t", ResultCache.writeTable("UPDATE `db`.`t` SET a = 1"));
+	}
+
+	@Test
+	public void writeTableUnknown()
+	{
+		assertNull(ResultCache.writeTable("CREATE TABLE t (a INT)"));
+		assertNull(ResultCache.writeTable("ALTER TABLE t ADD b INT"));
+		assertNull(ResultCache.writeTable("WITH x AS (SELECT 1) UPDATE t SET a = 1"));
+	}
+
+	@Test
+	public void normalizeTable()
+	{
+		assertEquals("t", ResultCache.normalizeTable("T"));
+		assertEquals("t", ResultCache.normalizeTable("schema.T"));
+		assertEquals("a.b", ResultCache.normalizeTable("\"A.B\""));
+		assertEquals("t", ResultCache.normalizeTable("[dbo] . [T]"));
+	}
+}